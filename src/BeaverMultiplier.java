@@ -0,0 +1,19 @@
+import java.io.IOException;
+
+/**
+ * Multiplies with Beaver triples, see {@code Peer.multiplyBatch()}. Every
+ * multiplication claims a triple from the pool, which must have been dealt
+ * beforehand. Works for any t < N.
+ */
+public class BeaverMultiplier implements Multiplier {
+    private final TriplePool triples;
+
+    BeaverMultiplier(TriplePool triples) {
+        this.triples = triples;
+    }
+
+    @Override
+    public long[] multiply(Peer peer, long[] x, long[] y) throws IOException {
+        return peer.multiplyBatch(x, y, triples);
+    }
+}
@@ -0,0 +1,592 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+import java.util.function.LongSupplier;
+
+/**
+ * Micro benchmarks for the core operations of the protocol. Every benchmark is run
+ * in batches: the batch size is first doubled until a batch takes at least
+ * {@code TARGET_BATCH_NANOS}, then a few batches are run to warm up the JIT, and the
+ * time per operation is reported over the measured batches. Every operation returns
+ * a value which is folded into {@code sink}, so the JIT can't remove the work.
+ * Run with {@code java Benchmarks [filter]}, where only benchmarks whose name
+ * contains {@code filter} are run.
+ * {@code checkLossyLink()} is not timed in batches: it runs once, and fails if the
+ * reliable transport sends more than it should over a link that loses a message.
+ */
+public class Benchmarks {
+    private static final long TARGET_BATCH_NANOS = 20_000_000L;
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASUREMENT_ITERATIONS = 10;
+    /**
+     * Pairs of (number of peers, degree of the polynomial).
+     */
+    private static final int[][] PEERS_AND_DEGREES = {{5, 2}, {50, 24}, {200, 99}};
+    /**
+     * Pairs of (number of peers, degree) for comparing the multipliers. All of them
+     * have an honest majority, which {@code BgwMultiplier} needs.
+     */
+    private static final int[][] MULTIPLIER_PEERS_AND_DEGREES = {{3, 1}, {5, 2}, {9, 4},
+            {17, 8}};
+    /**
+     * The number of multiplications that every operation of the multiplier
+     * benchmarks does at once.
+     */
+    private static final int MULTIPLICATIONS = 1024;
+    /**
+     * The number of rows and columns of the matrices of the matrix benchmarks: the
+     * local kernel, and the shared product on a cluster.
+     */
+    private static final int KERNEL_MATRIX_SIZE = 256;
+    private static final int SHARED_MATRIX_SIZE = 32;
+    /**
+     * The number of different sets of x that the uncached reconstruction benchmark
+     * goes through: a power of two, and more than {@code Polynomial} caches
+     * co-efficients for, so that none of them is in the cache when it comes around
+     * again.
+     */
+    private static final int X_SETS = 4096;
+    /**
+     * The number of messages of the lossy link check, and the one that is lost.
+     */
+    private static final int LOSSY_MESSAGES = 300;
+    private static final long LOST_SEQUENCE = 5;
+    private static int nextSession = 1;
+    private static volatile long sink;
+    private static String filter;
+
+    public static void main(String[] args) {
+        filter = args.length > 0 ? args[0] : null;
+        System.out.printf("%-32s %-14s %14s %14s%n", "Benchmark", "Params", "ns/op",
+                "min ns/op");
+        benchmarkField();
+        for (int[] peersAndDegree : PEERS_AND_DEGREES) {
+            benchmarkPolynomial(peersAndDegree[0], peersAndDegree[1]);
+            benchmarkPackedSharing(peersAndDegree[0], peersAndDegree[1]);
+        }
+        benchmarkCodec();
+        benchmarkBeaverMultiply();
+        benchmarkTriples();
+        benchmarkMatrix();
+        for (int[] peersAndDegree : MULTIPLIER_PEERS_AND_DEGREES) {
+            benchmarkMultipliers(peersAndDegree[0], peersAndDegree[1]);
+        }
+        checkLossyLink();
+    }
+
+    private static void benchmarkField() {
+        Field field = Utils.FIELD;
+        long[] values = randomElements(1024);
+        int[] index = {0};
+        run("Field.multiply", field.toString(), () -> {
+            int i = index[0]++ & 1023;
+            return field.multiply(values[i], values[(i + 1) & 1023]);
+        });
+        run("Field.inverse", field.toString(),
+                () -> field.inverse(values[index[0]++ & 1023] | 1));
+    }
+
+    private static void benchmarkPolynomial(int numPeers, int degree) {
+        String params = "n=" + numPeers + ",t=" + degree;
+        Polynomial polynomial = new Polynomial(42, degree);
+        int[] x = new int[numPeers];
+        for (int i = 0; i < numPeers; i++) {
+            x[i] = i + 1;
+        }
+        long[] y = new long[numPeers];
+        polynomial.f(x, y);
+
+        int[] index = {0};
+        run("Polynomial.f(x)", params, () -> polynomial.f(x[index[0]++ % numPeers]));
+        run("Polynomial.f(x[])", params, () -> {
+            polynomial.f(x, y);
+            return y[0];
+        });
+        run("Polynomial.calculateSecret", params,
+                () -> Polynomial.calculateSecret(x, y, degree));
+
+        Random random = new Random(42);
+        int[][] xSets = new int[X_SETS][degree + 1];
+        long[][] ySets = new long[X_SETS][degree + 1];
+        for (int k = 0; k < X_SETS; k++) {
+            int first = 1 + random.nextInt(1 << 30);
+            for (int i = 0; i <= degree; i++) {
+                xSets[k][i] = first + i;
+            }
+            polynomial.f(xSets[k], ySets[k]);
+        }
+        run("Polynomial.calculateSecret(miss)", params, () -> {
+            int k = index[0]++ & (X_SETS - 1);
+            return Polynomial.calculateSecret(xSets[k], ySets[k], degree);
+        });
+    }
+
+    /**
+     * Packs as many secrets as still lets a product of two sharings be opened by all
+     * the peers, ie. the largest k with t+2k-1 <= n.
+     */
+    private static void benchmarkPackedSharing(int numPeers, int degree) {
+        PackedSharing packing = new PackedSharing((numPeers - degree + 1) / 2, degree);
+        String params = "n=" + numPeers + ",t=" + degree + ",k=" + packing.k;
+        int[] x = new int[numPeers];
+        for (int i = 0; i < numPeers; i++) {
+            x[i] = i + 1;
+        }
+        long[] secrets = randomElements(packing.k);
+        long[] y = new long[numPeers];
+        Random r = new Random(1);
+        packing.share(secrets, x, y, r);
+
+        run("PackedSharing.share", params, () -> {
+            packing.share(secrets, x, y, r);
+            return y[0];
+        });
+        run("PackedSharing.reconstruct", params,
+                () -> packing.reconstruct(x, y, packing.degree())[0]);
+    }
+
+    private static void benchmarkCodec() {
+        Utils.ShareWrapper shareWrapper = new Utils.ShareWrapper(123456789L, 3, 7);
+        ByteBuffer buffer = ByteBuffer.allocate(ShareCodec.MESSAGE_SIZE);
+        run("ShareCodec.encode", "", () -> {
+            buffer.clear();
+            ShareCodec.encode(shareWrapper, buffer);
+            return buffer.position();
+        });
+        run("ShareCodec.decode", "", () -> {
+            buffer.rewind();
+            return ShareCodec.decode(buffer).share;
+        });
+    }
+
+    private static void benchmarkBeaverMultiply() {
+        long[] values = randomElements(1024);
+        int[] index = {0};
+        run("Peer.beaverCombine", "", () -> {
+            int i = index[0]++ & 1023;
+            return Peer.beaverCombine(values[i], values[(i + 1) & 1023],
+                    values[(i + 2) & 1023], values[(i + 3) & 1023], values[(i + 4) & 1023]);
+        });
+    }
+
+    private static void benchmarkTriples() {
+        Utils.OneMillionBeaverTriples triples = new Utils.OneMillionBeaverTriples();
+        String params = "n=" + triples.n;
+        run("OneMillionBeaverTriples.new", params,
+                () -> new Utils.OneMillionBeaverTriples().c[0]);
+        TriplePool[] pool = {new TriplePool(triples)};
+        run("TriplePool.claim", params, () -> {
+            if (pool[0].remaining() == 0) {
+                pool[0] = new TriplePool(triples);
+            }
+            return pool[0].claim(0, 1);
+        });
+        run("TripleStream", params + ",N=" + Utils.NUM_PEERS, () -> streamTriples(triples.n));
+        SecureRandom random = new SecureRandom();
+        run("SeededDealer.deal", params + ",N=" + Utils.NUM_PEERS + ",t=" + Utils.DEGREE,
+                () -> SeededDealer.deal(triples.n, random)[1].n);
+        SeededDealer.Package[] packages = SeededDealer.deal(triples.n, random);
+        run("SeededDealer.expand", params, () -> SeededDealer.expand(1, packages[1]).c[0]);
+    }
+
+    private static void benchmarkMatrix() {
+        int n = KERNEL_MATRIX_SIZE;
+        Matrix a = new Matrix(n, n, randomElements(n * n));
+        Matrix b = new Matrix(n, n, randomElements(n * n));
+        run("Matrix.multiply", "n=" + n, () -> a.multiply(b).values[0]);
+    }
+
+    /**
+     * Compares the multipliers on a cluster of {@code numPeers} peers over a
+     * {@code LoopbackTransport}, which multiply {@code MULTIPLICATIONS} pairs of
+     * shared values per operation:
+     * - BeaverMultiplier: with triples that were dealt beforehand, so only the online
+     * phase is measured. The same triples are used over and over, which is only fine
+     * for measuring.
+     * - BeaverMultiplier+deal: the same, but the triples are dealt (on this machine,
+     * with {@code ParallelDealer}) for every operation.
+     * - BgwMultiplier: without triples.
+     * - SharedVector.dot: the dot product of two shared vectors of
+     * {@code MULTIPLICATIONS} elements, with the triples of BeaverMultiplier. Before
+     * it is timed, a product and a dot product of vectors are opened once and checked.
+     * - Peer.multiplyPacked+deal: the same multiplications, packed as many to a
+     * sharing as still lets all the peers open the products (see
+     * {@code benchmarkPackedSharing()}), with packed triples that are dealt for every
+     * operation. Before it is timed, the products are opened once and checked.
+     * - Peer.multiplyMatrices+deal: the product of two shared matrices of
+     * {@code SHARED_MATRIX_SIZE} x {@code SHARED_MATRIX_SIZE}, with a matrix triple
+     * that is dealt for every operation, since it can only be used once.
+     * {@code Utils.NUM_PEERS} and {@code Utils.DEGREE} are set to the benchmarked
+     * values while it runs.
+     */
+    private static void benchmarkMultipliers(int numPeers, int degree) {
+        String params = "N=" + numPeers + ",t=" + degree;
+        int configuredPeers = Utils.NUM_PEERS;
+        int configuredDegree = Utils.DEGREE;
+        Utils.NUM_PEERS = numPeers;
+        Utils.DEGREE = degree;
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        Peer[] peers = new Peer[numPeers + 1];
+        try {
+            for (int i = 1; i <= numPeers; i++) {
+                peers[i] = new Peer(network.transport(i));
+                peers[i].id = i;
+                peers[i].listen();
+            }
+            long[][] x = ParallelDealer.share(randomElements(MULTIPLICATIONS));
+            long[][] y = ParallelDealer.share(randomElements(MULTIPLICATIONS));
+            Utils.OneMillionBeaverTriples[] triples = ParallelDealer.deal(MULTIPLICATIONS);
+            run("BeaverMultiplier", params, () -> multiply(peers,
+                    i -> new BeaverMultiplier(new TriplePool(triples[i])), x, y));
+            run("BeaverMultiplier+deal", params, () -> {
+                Utils.OneMillionBeaverTriples[] dealt = ParallelDealer.deal(MULTIPLICATIONS);
+                return multiply(peers, i -> new BeaverMultiplier(new TriplePool(dealt[i])),
+                        x, y);
+            });
+            run("BgwMultiplier", params, () -> multiply(peers, i -> new BgwMultiplier(),
+                    x, y));
+            benchmarkSharedVector(peers, params, x, y, triples);
+            benchmarkMultiplyPacked(peers, params);
+            int n = SHARED_MATRIX_SIZE;
+            long[][] left = ParallelDealer.share(randomElements(n * n));
+            long[][] right = ParallelDealer.share(randomElements(n * n));
+            run("Peer.multiplyMatrices+deal", params, () -> {
+                MatrixTriple[] dealt = MatrixTriple.deal(n, n, n);
+                return inSession(peers, i -> peer -> peer.multiplyMatrices(
+                        new Matrix(n, n, left[i]), new Matrix(n, n, right[i]), dealt[i])
+                        .values[0]);
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            for (int i = 1; i <= numPeers; i++) {
+                if (peers[i] != null) {
+                    closeQuietly(peers[i].transport);
+                }
+            }
+            Utils.NUM_PEERS = configuredPeers;
+            Utils.DEGREE = configuredDegree;
+        }
+    }
+
+    /**
+     * See {@code benchmarkMultipliers()}. Both {@code x} and {@code y} share the values
+     * of {@code randomElements(MULTIPLICATIONS)}, so with v the vector of those values,
+     * (x + y) * 3y opens to 6v[j]^2 element by element, and the dot product of the
+     * same vectors to the sum of those.
+     *
+     * @throws IllegalStateException if a vector or dot product doesn't open to the one
+     *                               of the secrets.
+     */
+    private static void benchmarkSharedVector(Peer[] peers, String params, long[][] x,
+                                              long[][] y,
+                                              Utils.OneMillionBeaverTriples[] triples) {
+        String name = "SharedVector.dot";
+        if (!selected(name)) {
+            return;
+        }
+        Field field = Utils.FIELD;
+        long[] values = randomElements(MULTIPLICATIONS);
+        long[] expected = new long[MULTIPLICATIONS];
+        long expectedDot = 0;
+        for (int j = 0; j < MULTIPLICATIONS; j++) {
+            expected[j] = field.multiply(6, field.multiply(values[j], values[j]));
+            expectedDot = field.add(expectedDot, expected[j]);
+        }
+        long expectedSum = expectedDot;
+        Utils.OneMillionBeaverTriples[] checked = ParallelDealer.deal(2 * MULTIPLICATIONS);
+        long wrong = inSession(peers, i -> peer -> {
+            Multiplier multiplier = new BeaverMultiplier(new TriplePool(checked[i]));
+            SharedVector sharedX = new SharedVector(x[i]);
+            SharedVector sharedY = new SharedVector(y[i]);
+            SharedVector left = sharedX.add(sharedY);
+            SharedVector right = sharedY.multiply(3);
+            long[] products = left.multiply(right, peer, multiplier).open(peer);
+            long dot = left.dot(right, peer, multiplier);
+            long count = peer.reconstructSecrets(new long[]{dot})[0] == expectedSum ? 0 : 1;
+            for (int j = 0; j < MULTIPLICATIONS; j++) {
+                if (products[j] != expected[j]) {
+                    count++;
+                }
+            }
+            return count;
+        });
+        if (wrong != 0) {
+            throw new IllegalStateException(wrong + " shared vector products were wrong");
+        }
+        run(name, params, () -> inSession(peers, i -> peer -> new SharedVector(x[i])
+                .dot(new SharedVector(y[i]), peer,
+                        new BeaverMultiplier(new TriplePool(triples[i])))));
+    }
+
+    /**
+     * See {@code benchmarkMultipliers()}.
+     *
+     * @throws IllegalStateException if a product doesn't open to the product of the
+     *                               secrets.
+     */
+    private static void benchmarkMultiplyPacked(Peer[] peers, String params) {
+        String name = "Peer.multiplyPacked+deal";
+        if (!selected(name)) {
+            return;
+        }
+        Field field = Utils.FIELD;
+        PackedSharing packing = new PackedSharing(
+                (Utils.NUM_PEERS - Utils.DEGREE + 1) / 2, Utils.DEGREE);
+        Random random = new Random(1);
+        long[] x = new long[MULTIPLICATIONS];
+        long[] y = new long[MULTIPLICATIONS];
+        for (int j = 0; j < MULTIPLICATIONS; j++) {
+            x[j] = field.random(random);
+            y[j] = field.random(random);
+        }
+        long[][] sharedX = packing.share(x, random);
+        long[][] sharedY = packing.share(y, random);
+        int sharings = sharedX[1].length;
+        Utils.OneMillionBeaverTriples[] checked = packing.dealTriples(sharings, random);
+        long wrong = inSession(peers, i -> peer -> {
+            long[] z = peer.multiplyPacked(sharedX[i], sharedY[i],
+                    new TriplePool(checked[i]), packing);
+            long[] products = peer.reconstructPackedSecrets(z, packing,
+                    packing.productDegree());
+            long count = 0;
+            for (int j = 0; j < MULTIPLICATIONS; j++) {
+                if (products[j] != field.multiply(x[j], y[j])) {
+                    count++;
+                }
+            }
+            return count;
+        });
+        if (wrong != 0) {
+            throw new IllegalStateException(wrong + " packed products were wrong with " +
+                    packing);
+        }
+        run(name, params + ",k=" + packing.k, () -> {
+            Utils.OneMillionBeaverTriples[] dealt = packing.dealTriples(sharings, random);
+            return inSession(peers, i -> peer -> peer.multiplyPacked(sharedX[i],
+                    sharedY[i], new TriplePool(dealt[i]), packing)[0]);
+        });
+    }
+
+    /**
+     * Multiplies x[i][k]*y[i][k] on every peer i at once, in a new session, with the
+     * multiplier from {@code multipliers}, like the peers of a run would.
+     */
+    private static long multiply(Peer[] peers, IntFunction<Multiplier> multipliers,
+                                 long[][] x, long[][] y) {
+        return inSession(peers, i -> {
+            Multiplier multiplier = multipliers.apply(i);
+            return peer -> multiplier.multiply(peer, x[i], y[i])[0];
+        });
+    }
+
+    /**
+     * Runs the computation from {@code computations} on every peer i at once, in a
+     * new session.
+     *
+     * @return the sum of the results.
+     */
+    private static long inSession(Peer[] peers,
+                                  IntFunction<Peer.Computation<Long>> computations) {
+        int session = nextSession++;
+        ArrayList<Future<Long>> results = new ArrayList<>();
+        for (int i = 1; i < peers.length; i++) {
+            results.add(peers[i].runSession(session, computations.apply(i)));
+        }
+        try {
+            long result = 0;
+            for (Future<Long> future : results) {
+                result += future.get();
+            }
+            return result;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Streams n triples to every peer over a {@code LoopbackTransport}, and has every
+     * peer take all of them on its own thread, like the peers of a run would.
+     */
+    private static long streamTriples(int n) {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        ExecutorService peers = Executors.newFixedThreadPool(Utils.NUM_PEERS);
+        ArrayList<TripleStream.Receiver> receivers = new ArrayList<>();
+        TripleStream.Sender sender = null;
+        try {
+            sender = new TripleStream.Sender(network.transport(Utils.RUNNER_ID), n);
+            ArrayList<Future<Long>> results = new ArrayList<>();
+            for (int i = 1; i <= Utils.NUM_PEERS; i++) {
+                TripleStream.Receiver receiver =
+                        new TripleStream.Receiver(network.transport(i).accept());
+                receivers.add(receiver);
+                results.add(peers.submit(() -> receiver.take(n).c[n - 1]));
+            }
+            long result = 0;
+            for (Future<Long> future : results) {
+                result += future.get();
+            }
+            return result;
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            peers.shutdown();
+            // The sender goes first, so it doesn't report the receivers closing.
+            closeQuietly(sender);
+            receivers.forEach(Benchmarks::closeQuietly);
+        }
+    }
+
+    /**
+     * Sends {@code LOSSY_MESSAGES} messages from party 1 to party 2 over a
+     * {@code ReliableTransport} on a link that drops every copy of message
+     * {@code LOST_SEQUENCE}, and counts what goes over the link. Only the lost
+     * message may be given up on, and every other message must be delivered with
+     * a single datagram: once the lost message is given up on, the receiver's window
+     * has to move past it, or the messages after it are never acked.
+     *
+     * @throws IllegalStateException if more is given up on or sent than that.
+     */
+    private static void checkLossyLink() {
+        String name = "ReliableTransport(lossy)";
+        if (!selected(name)) {
+            return;
+        }
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        LongAdder datagrams = new LongAdder();
+        // The sequence number follows the type, the ids and the epoch.
+        int sequenceOffset = 1 + 4 + 4 + 8;
+        Transport link = new Transport() {
+            private final Transport transport = network.transport(1);
+
+            @Override
+            public void send(int to, ByteBuffer message) throws IOException {
+                if (message.get(message.position()) == 1 &&
+                        message.getLong(message.position() + sequenceOffset) ==
+                                LOST_SEQUENCE) {
+                    return;
+                }
+                datagrams.increment();
+                transport.send(to, message);
+            }
+
+            @Override
+            public void listen(Handler handler) throws IOException {
+                transport.listen(handler);
+            }
+
+            @Override
+            public OutputStream connect(int to) throws IOException {
+                return transport.connect(to);
+            }
+
+            @Override
+            public InputStream accept() throws IOException {
+                return transport.accept();
+            }
+
+            @Override
+            public void close() throws IOException {
+                transport.close();
+            }
+        };
+        LongAdder delivered = new LongAdder();
+        long abandonedBefore = Metrics.MESSAGES_ABANDONED.sum();
+        long start = System.nanoTime();
+        ReliableTransport receiver = new ReliableTransport(network.transport(2), 2);
+        try (ReliableTransport sender = new ReliableTransport(link, 1)) {
+            receiver.listen(message -> delivered.increment());
+            sender.listen(message -> {
+            });
+            for (int k = 0; k < LOSSY_MESSAGES; k++) {
+                sender.send(2, ByteBuffer.allocate(Long.BYTES).putLong(0, k));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            closeQuietly(receiver);
+        }
+        long elapsed = System.nanoTime() - start;
+        long abandoned = Metrics.MESSAGES_ABANDONED.sum() - abandonedBefore;
+        System.out.printf("%-32s %-14s %d delivered, %d datagrams, %d given up on, " +
+                        "%d ms%n", name, "n=" + LOSSY_MESSAGES, delivered.sum(),
+                datagrams.sum(), abandoned, TimeUnit.NANOSECONDS.toMillis(elapsed));
+        if (delivered.sum() != LOSSY_MESSAGES - 1 || abandoned != 1 ||
+                datagrams.sum() > LOSSY_MESSAGES + LOSSY_MESSAGES / 10) {
+            throw new IllegalStateException("The link that lost a single message " +
+                    "needed more than a datagram per message, or gave up on more");
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long[] randomElements(int n) {
+        Random r = new Random(1);
+        long[] values = new long[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = Utils.FIELD.random(r);
+        }
+        return values;
+    }
+
+    private static boolean selected(String name) {
+        return filter == null || name.contains(filter);
+    }
+
+    private static void run(String name, String params, LongSupplier operation) {
+        if (!selected(name)) {
+            return;
+        }
+        long batchSize = 1;
+        while (time(operation, batchSize) < TARGET_BATCH_NANOS) {
+            batchSize *= 2;
+        }
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            time(operation, batchSize);
+        }
+        long total = 0;
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            long elapsed = time(operation, batchSize);
+            total += elapsed;
+            min = Math.min(min, elapsed);
+        }
+        double nanosPerOp = (double) total / MEASUREMENT_ITERATIONS / batchSize;
+        double minNanosPerOp = (double) min / batchSize;
+        System.out.printf("%-32s %-14s %14.1f %14.1f%n", name, params, nanosPerOp,
+                minNanosPerOp);
+    }
+
+    private static long time(LongSupplier operation, long batchSize) {
+        long result = 0;
+        long start = System.nanoTime();
+        for (long i = 0; i < batchSize; i++) {
+            result ^= operation.getAsLong();
+        }
+        long elapsed = System.nanoTime() - start;
+        sink = result;
+        return elapsed;
+    }
+}
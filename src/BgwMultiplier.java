@@ -0,0 +1,13 @@
+import java.io.IOException;
+
+/**
+ * Multiplies with the degree reduction of BGW, see {@code Peer.multiplyBgw()}. It
+ * needs neither a dealer nor any state, but only works with an honest majority,
+ * N >= 2t+1.
+ */
+public class BgwMultiplier implements Multiplier {
+    @Override
+    public long[] multiply(Peer peer, long[] x, long[] y) throws IOException {
+        return peer.multiplyBgw(x, y);
+    }
+}
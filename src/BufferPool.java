@@ -0,0 +1,36 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A pool of direct buffers of the same size. Direct buffers are expensive to
+ * allocate but can be handed to a channel without an extra copy, so they are
+ * allocated once and then reused for every message.
+ */
+public class BufferPool {
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final int bufferSize;
+
+    public BufferPool(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return a cleared buffer, either from the pool or newly allocated if the pool
+     * is empty.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used after this.
+     */
+    public void release(ByteBuffer buffer) {
+        buffers.offer(buffer);
+    }
+}
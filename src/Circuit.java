@@ -0,0 +1,227 @@
+import java.util.ArrayList;
+import java.util.TreeSet;
+import java.util.function.IntBinaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * An arithmetic circuit over {@code Utils.FIELD}. A circuit is built by adding gates
+ * one at a time; every method returns the id of the wire that carries the result of
+ * the new gate, which can then be used as the input of later gates:
+ * <pre>
+ * Circuit circuit = new Circuit();
+ * int x = circuit.input(1);                   // private value of peer 1
+ * int y = circuit.input(2);                   // private value of peer 2
+ * int z = circuit.multiply(circuit.add(x, y), y);
+ * circuit.output(z);                          // (x+y)*y is revealed at the end
+ * </pre>
+ * Additions and multiplications by a constant can be done by every peer locally.
+ * Multiplications need a Beaver triple and a round of communication, so gates are
+ * grouped by their multiplicative depth (the number of multiplications on the
+ * longest path from an input to the gate). All the multiplications of the same depth
+ * are independent of each other and can be done together in one round, see
+ * {@code Peer.evaluateCircuit()}.
+ */
+public class Circuit {
+    enum Type {INPUT, ADD, MULTIPLY_BY_CONSTANT, MULTIPLY}
+
+    static class Gate {
+        final Type type;
+        final int left;
+        final int right;
+        final long constant;
+        final int owner;
+        final int depth;
+
+        Gate(Type type, int left, int right, long constant, int owner, int depth) {
+            this.type = type;
+            this.left = left;
+            this.right = right;
+            this.constant = constant;
+            this.owner = owner;
+            this.depth = depth;
+        }
+    }
+
+    final ArrayList<Gate> gates = new ArrayList<>();
+    final ArrayList<Integer> outputs = new ArrayList<>();
+    private int depth;
+
+    /**
+     * Adds an input gate for a private value of a peer.
+     *
+     * @param owner the id of the peer that provides the value.
+     * @return the wire of the input.
+     */
+    public int input(int owner) {
+        return addGate(new Gate(Type.INPUT, -1, -1, 0, owner, 0));
+    }
+
+    /**
+     * @return a wire that carries left+right.
+     */
+    public int add(int left, int right) {
+        return addGate(new Gate(Type.ADD, left, right, 0, 0,
+                Math.max(depthOf(left), depthOf(right))));
+    }
+
+    /**
+     * @return a wire that carries wire*constant.
+     */
+    public int multiplyByConstant(int wire, long constant) {
+        return addGate(new Gate(Type.MULTIPLY_BY_CONSTANT, wire, -1,
+                Utils.FIELD.reduce(constant), 0, depthOf(wire)));
+    }
+
+    /**
+     * @return a wire that carries left*right.
+     */
+    public int multiply(int left, int right) {
+        int gateDepth = Math.max(depthOf(left), depthOf(right)) + 1;
+        depth = Math.max(depth, gateDepth);
+        return addGate(new Gate(Type.MULTIPLY, left, right, 0, 0, gateDepth));
+    }
+
+    /**
+     * Adds the wires as a balanced binary tree of additions.
+     *
+     * @return a wire that carries the sum of all the wires.
+     */
+    public int sum(int... wires) {
+        return reduce(wires, this::add);
+    }
+
+    /**
+     * Multiplies the wires as a balanced binary tree, so n wires of the same depth d
+     * give a product of depth d+ceil(log2 n) instead of d+n-1.
+     *
+     * @return a wire that carries the product of all the wires.
+     */
+    public int product(int... wires) {
+        return reduce(wires, this::multiply);
+    }
+
+    /**
+     * Combines neighbouring wires pairwise, level by level, until one wire is left. An
+     * odd wire out is carried to the next level unchanged.
+     */
+    private int reduce(int[] wires, IntBinaryOperator operator) {
+        if (wires.length == 0) {
+            throw new IllegalArgumentException("Nothing to reduce");
+        }
+        int[] level = wires.clone();
+        for (int length = level.length; length > 1; length = (length + 1) / 2) {
+            for (int k = 0; k < length / 2; k++) {
+                level[k] = operator.applyAsInt(level[2 * k], level[2 * k + 1]);
+            }
+            if (length % 2 == 1) {
+                level[length / 2] = level[length - 1];
+            }
+        }
+        return level[0];
+    }
+
+    /**
+     * Marks a wire as an output of the circuit, ie. its value is revealed to every
+     * peer at the end of the evaluation.
+     *
+     * @return the index of the output, in the array returned by the evaluation.
+     */
+    public int output(int wire) {
+        checkWire(wire);
+        outputs.add(wire);
+        return outputs.size() - 1;
+    }
+
+    /**
+     * @return the largest multiplicative depth of any gate, which is also the number
+     * of rounds needed for the multiplications.
+     */
+    public int depth() {
+        return depth;
+    }
+
+    /**
+     * @return the number of multiplication gates, ie. the number of Beaver triples
+     * needed to evaluate the circuit.
+     */
+    public int numMultiplications() {
+        int count = 0;
+        for (Gate gate : gates) {
+            if (gate.type == Type.MULTIPLY) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return an array such that layers[d-1] holds the wires of all the
+     * multiplications of depth d, in the order they were added.
+     */
+    int[][] multiplicationLayers() {
+        int[] sizes = new int[depth];
+        for (Gate gate : gates) {
+            if (gate.type == Type.MULTIPLY) {
+                sizes[gate.depth - 1]++;
+            }
+        }
+        int[][] layers = new int[depth][];
+        for (int d = 0; d < depth; d++) {
+            layers[d] = new int[sizes[d]];
+            sizes[d] = 0;
+        }
+        for (int wire = 0; wire < gates.size(); wire++) {
+            Gate gate = gates.get(wire);
+            if (gate.type == Type.MULTIPLY) {
+                layers[gate.depth - 1][sizes[gate.depth - 1]++] = wire;
+            }
+        }
+        return layers;
+    }
+
+    /**
+     * @return the ids of all the peers that provide at least one input, in ascending
+     * order.
+     */
+    int[] owners() {
+        TreeSet<Integer> owners = new TreeSet<>();
+        for (Gate gate : gates) {
+            if (gate.type == Type.INPUT) {
+                owners.add(gate.owner);
+            }
+        }
+        return owners.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @return the input wires of a peer, in the order they were added.
+     */
+    int[] inputsOf(int owner) {
+        return IntStream.range(0, gates.size())
+                .filter(wire -> gates.get(wire).type == Type.INPUT &&
+                        gates.get(wire).owner == owner)
+                .toArray();
+    }
+
+    private int addGate(Gate gate) {
+        if (gate.left != -1) {
+            checkWire(gate.left);
+        }
+        if (gate.right != -1) {
+            checkWire(gate.right);
+        }
+        gates.add(gate);
+        return gates.size() - 1;
+    }
+
+    private int depthOf(int wire) {
+        checkWire(wire);
+        return gates.get(wire).depth;
+    }
+
+    private void checkWire(int wire) {
+        if (wire < 0 || wire >= gates.size()) {
+            throw new IllegalArgumentException("Unknown wire " + wire);
+        }
+    }
+}
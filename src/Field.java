@@ -0,0 +1,46 @@
+import java.util.Random;
+import java.util.SplittableRandom;
+
+/**
+ * Arithmetic over a prime field. Secrets, shares and the co-efficients of a
+ * {@code Polynomial} are all elements of a field, and are represented as a
+ * {@code long} in the range [0, p), where p is the modulus of the field.
+ * Keeping every value inside the field means that shares don't grow after every
+ * multiplication, and that a share always takes up the same number of bytes.
+ */
+public interface Field {
+    /**
+     * @return the prime p that all arithmetic is done modulo.
+     */
+    long modulus();
+
+    /**
+     * Maps any long (including negative values) to the corresponding element of the
+     * field.
+     */
+    long reduce(long value);
+
+    long add(long a, long b);
+
+    long subtract(long a, long b);
+
+    long multiply(long a, long b);
+
+    long negate(long a);
+
+    /**
+     * @return b such that a*b=1.
+     * @throws ArithmeticException if a is 0.
+     */
+    long inverse(long a);
+
+    /**
+     * @return a uniformly random element of the field.
+     */
+    long random(Random r);
+
+    /**
+     * Same as {@code random(Random)}, for generators that are split between threads.
+     */
+    long random(SplittableRandom r);
+}
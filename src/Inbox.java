@@ -0,0 +1,260 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Holds the shares of a single session that arrived before the peer was ready for
+ * them. Every share is tagged with the round it belongs to. Peers don't wait for
+ * each other between rounds, so a fast peer can send its share for round r+1 while
+ * a slower peer is still collecting shares for round r. That share is kept here
+ * until the slower peer gets to round r+1.
+ * Shares are added by the transport's event loop thread (through
+ * {@code Sessions}) and taken by the thread running the session, which waits until
+ * enough shares for its round are here. Every session has its own inbox, so a share
+ * only wakes up the thread of its own session.
+ * A round can also be taken without waiting, with {@code takeAsync()}: the shares
+ * are then handed over by completing a future, on the thread that adds the last
+ * share that was needed.
+ * A round can be taken before all of its shares are here (see {@code takeAsync()}
+ * with {@code expected}), in which case the shares that arrive afterwards are handed
+ * to a listener instead of being stored.
+ * A round that doesn't get enough shares within {@code TIMEOUT_MILLIS} fails with
+ * an {@code IOException}. By then, the transport has given up on any share of it
+ * that was lost (see {@code ReliableTransport}), so waiting longer wouldn't help.
+ */
+public class Inbox {
+    /**
+     * How long a take waits for the shares of its round. Much longer than the
+     * transport tries to deliver a share, since a peer may take a round long before
+     * the slower peers send their shares for it.
+     */
+    static final long TIMEOUT_MILLIS = 60_000;
+    /**
+     * Fails the {@code takeAsync()}s that time out. A timeout is cancelled, and
+     * dropped from the queue, as soon as its take completes, so the timeouts of the
+     * many rounds that do get their shares don't pile up.
+     */
+    private static final ScheduledThreadPoolExecutor TIMER = newTimer();
+    private final HashMap<Integer, ArrayList<Utils.ShareWrapper>> pending = new HashMap<>();
+    private final HashMap<Integer, Late> late = new HashMap<>();
+    private final HashMap<Integer, Waiter> waiters = new HashMap<>();
+    private final long timeoutMillis;
+    private boolean closed;
+
+    Inbox() {
+        this(TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param timeoutMillis how long a take waits for the shares of its round.
+     */
+    Inbox(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * The listener for the shares of a round that was taken early, and how many of
+     * them are still expected.
+     */
+    private static class Late {
+        final Consumer<Utils.ShareWrapper> listener;
+        int remaining;
+
+        Late(Consumer<Utils.ShareWrapper> listener, int remaining) {
+            this.listener = listener;
+            this.remaining = remaining;
+        }
+    }
+
+    /**
+     * A {@code takeAsync()} that is still waiting for shares.
+     */
+    private static class Waiter {
+        final int n;
+        final int expected;
+        final Consumer<Utils.ShareWrapper> lateShares;
+        final CompletableFuture<ArrayList<Utils.ShareWrapper>> future =
+                new CompletableFuture<>();
+
+        Waiter(int n, int expected, Consumer<Utils.ShareWrapper> lateShares) {
+            this.n = n;
+            this.expected = expected;
+            this.lateShares = lateShares;
+        }
+    }
+
+    /**
+     * Stores a share until {@code take()} is called for its round. If the round was
+     * already taken, the share is handed to its listener instead, on the calling
+     * thread. If a {@code takeAsync()} is waiting for the round and this was the last
+     * share it needed, its future is completed, also on the calling thread. Shares are
+     * dropped once the inbox is closed.
+     */
+    public void add(Utils.ShareWrapper shareWrapper) {
+        Late lateRound;
+        Waiter waiter;
+        ArrayList<Utils.ShareWrapper> shares;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            int round = shareWrapper.round;
+            lateRound = late.get(round);
+            if (lateRound == null) {
+                shares = pending.computeIfAbsent(round, k -> new ArrayList<>());
+                shares.add(shareWrapper);
+                waiter = waiters.get(round);
+                if (waiter == null || shares.size() < waiter.n) {
+                    notifyAll();
+                    return;
+                }
+                waiters.remove(round);
+                remove(round, waiter.expected, waiter.lateShares);
+            } else {
+                waiter = null;
+                shares = null;
+                if (--lateRound.remaining == 0) {
+                    late.remove(round);
+                }
+            }
+        }
+        if (waiter != null) {
+            waiter.future.complete(shares);
+            return;
+        }
+        lateRound.listener.accept(shareWrapper);
+    }
+
+    /**
+     * Waits until at least {@code n} shares have arrived for a round, then removes
+     * and returns all the shares stored for it.
+     *
+     * @return the shares.
+     * @throws InterruptedIOException if the thread is interrupted while waiting.
+     * @throws IOException            if the shares don't arrive in time, or the inbox
+     *                                is closed before they do.
+     */
+    public synchronized ArrayList<Utils.ShareWrapper> take(int round, int n)
+            throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        ArrayList<Utils.ShareWrapper> shares = pending.get(round);
+        while (shares == null || shares.size() < n) {
+            if (closed) {
+                throw new IOException("Session is closed");
+            }
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                throw timedOut(round, n, shares);
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            shares = pending.get(round);
+        }
+        pending.remove(round);
+        return shares;
+    }
+
+    /**
+     * Takes the shares of a round like {@code take(round, n)}, but without waiting:
+     * the returned future completes once {@code n} shares are here. The round has
+     * {@code expected} shares in total, of which only {@code n} are needed; the shares
+     * that arrive after the future completes are handed to {@code lateShares}.
+     * Only one take per round is allowed.
+     *
+     * @return the shares. Completes exceptionally with an {@code IOException} if
+     * the inbox is closed before enough shares arrived, or if they don't arrive in
+     * time.
+     */
+    public CompletableFuture<ArrayList<Utils.ShareWrapper>> takeAsync(
+            int round, int n, int expected, Consumer<Utils.ShareWrapper> lateShares) {
+        ArrayList<Utils.ShareWrapper> shares;
+        synchronized (this) {
+            if (closed) {
+                return CompletableFuture.failedFuture(new IOException("Session is closed"));
+            }
+            shares = pending.get(round);
+            if (shares == null || shares.size() < n) {
+                Waiter waiter = new Waiter(n, expected, lateShares);
+                waiters.put(round, waiter);
+                ScheduledFuture<?> timeout = TIMER.schedule(() -> expire(round, waiter),
+                        timeoutMillis, TimeUnit.MILLISECONDS);
+                waiter.future.whenComplete((result, e) -> timeout.cancel(false));
+                return waiter.future;
+            }
+            remove(round, expected, lateShares);
+        }
+        return CompletableFuture.completedFuture(shares);
+    }
+
+    /**
+     * Fails a {@code takeAsync()} that is still waiting once its time is up.
+     */
+    private void expire(int round, Waiter waiter) {
+        IOException timedOut;
+        synchronized (this) {
+            if (waiters.get(round) != waiter) {
+                return;
+            }
+            waiters.remove(round);
+            timedOut = timedOut(round, waiter.n, pending.get(round));
+        }
+        waiter.future.completeExceptionally(timedOut);
+    }
+
+    private IOException timedOut(int round, int n, ArrayList<Utils.ShareWrapper> shares) {
+        return new IOException("Round " + round + " got " +
+                (shares == null ? 0 : shares.size()) + " of the " + n + " shares it " +
+                "needs in " + timeoutMillis + "ms");
+    }
+
+    /**
+     * Removes the shares of a round that is taken, and hands the shares that are
+     * still expected to {@code lateShares} from now on.
+     */
+    private void remove(int round, int expected, Consumer<Utils.ShareWrapper> lateShares) {
+        ArrayList<Utils.ShareWrapper> shares = pending.remove(round);
+        if (shares.size() < expected) {
+            late.put(round, new Late(lateShares, expected - shares.size()));
+        }
+    }
+
+    /**
+     * Drops the stored shares and listeners, and every share that arrives from now
+     * on. Futures of {@code takeAsync()} that are still waiting fail, and so do the
+     * {@code take()}s.
+     */
+    public void close() {
+        ArrayList<Waiter> waiting;
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+            pending.clear();
+            late.clear();
+            waiting = new ArrayList<>(waiters.values());
+            waiters.clear();
+        }
+        for (Waiter waiter : waiting) {
+            waiter.future.completeExceptionally(new IOException("Session is closed"));
+        }
+    }
+
+    private static ScheduledThreadPoolExecutor newTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "inbox-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Checks the shares of a reconstruction that were not used for it. A secret of
+ * degree t is reconstructed from the first t+1 shares that arrive, so the protocol
+ * doesn't wait for the slowest peer. The other shares still arrive later; every one
+ * of them has to lie on the same polynomial as the t+1 shares that were used, ie.
+ * its value must equal the interpolation of the used shares at its x. A share that
+ * doesn't is logged as inconsistent.
+ * The checks run on a single background thread, so they never hold up the protocol
+ * or the transport's event loop. Shares handed to {@code accept()} before the used
+ * shares are known (with {@code use()}) are held back until then.
+ */
+public class LateShareCheck implements Consumer<Utils.ShareWrapper> {
+    private static final ExecutorService CHECKER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "late-share-check");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final int session;
+    private final int round;
+    private int[] x;
+    private long usedAt;
+    private long[][] y;
+    private ArrayList<Utils.ShareWrapper> early = new ArrayList<>();
+
+    LateShareCheck(int session, int round) {
+        this.session = session;
+        this.round = round;
+    }
+
+    /**
+     * Sets the shares that the secrets were reconstructed from, and checks the
+     * shares that arrived before this was called.
+     *
+     * @param x the x of the used shares.
+     * @param y y[i] holds the values of the share at x[i].
+     */
+    synchronized void use(int[] x, long[][] y) {
+        this.x = x;
+        this.y = y;
+        usedAt = System.nanoTime();
+        for (Utils.ShareWrapper shareWrapper : early) {
+            submit(shareWrapper);
+        }
+        early = null;
+    }
+
+    /**
+     * Checks a share that was not used, in the background. Only a share that arrives
+     * after the reconstruction started is a straggler, whose lag is recorded in
+     * {@code Metrics.STRAGGLER_LAG}.
+     */
+    @Override
+    public synchronized void accept(Utils.ShareWrapper shareWrapper) {
+        if (x == null) {
+            early.add(shareWrapper);
+        } else {
+            Metrics.STRAGGLER_LAG.recordSince(usedAt);
+            submit(shareWrapper);
+        }
+    }
+
+    /**
+     * Checks a share that was here in time for the reconstruction, but was not used
+     * for it, in the background. It is not a straggler, so nothing is recorded.
+     */
+    synchronized void acceptOnTime(Utils.ShareWrapper shareWrapper) {
+        if (x == null) {
+            early.add(shareWrapper);
+        } else {
+            submit(shareWrapper);
+        }
+    }
+
+    private void submit(Utils.ShareWrapper shareWrapper) {
+        int[] x = this.x;
+        long[][] y = this.y;
+        CHECKER.execute(() -> check(x, y, shareWrapper));
+    }
+
+    private void check(int[] x, long[][] y, Utils.ShareWrapper shareWrapper) {
+        Field field = Utils.FIELD;
+        long[] l = Polynomial.calculateLagrangeCoefficients(x, shareWrapper.x);
+        long[] values = shareWrapper.values();
+        if (values.length != y[0].length) {
+            System.err.println("Inconsistent share from peer " + shareWrapper.sender +
+                    " in session " + session + ", round " + round + ": got " +
+                    values.length + " values instead of " + y[0].length);
+            return;
+        }
+        for (int k = 0; k < values.length; k++) {
+            long expected = 0;
+            for (int i = 0; i < x.length; i++) {
+                expected = field.add(expected, field.multiply(l[i], y[i][k]));
+            }
+            if (expected != values[k]) {
+                System.err.println("Inconsistent share from peer " + shareWrapper.sender +
+                        " in session " + session + ", round " + round + ": got " +
+                        values[k] + " but the other shares give " + expected);
+                return;
+            }
+        }
+    }
+}
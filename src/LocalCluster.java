@@ -0,0 +1,42 @@
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Runs the Runner and all the peers as threads of a single JVM, connected by a
+ * {@code LoopbackTransport} instead of a network. Useful for profiling and
+ * measuring the protocol itself, without docker or network noise.
+ * Run with {@code java LocalCluster}.
+ */
+public class LocalCluster {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Utils.configure();
+        Metrics.expose();
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int i = 1; i <= Utils.NUM_PEERS; i++) {
+            Peer peer = new Peer(network.transport(i));
+            threads.add(start("peer-" + i, peer::run));
+        }
+        Runner runner = new Runner(network.transport(Utils.RUNNER_ID));
+        threads.add(start("runner", runner::run));
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private interface Party {
+        void run() throws IOException;
+    }
+
+    private static Thread start(String name, Party party) {
+        Thread thread = new Thread(() -> {
+            try {
+                party.run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, name);
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A {@code Transport} for parties that run as threads inside the same JVM. Every
+ * party has a queue of messages and a queue of incoming streams; sending a message
+ * puts a copy of it on the queue of the receiver, and a dispatcher thread passes
+ * the messages on the queue to the {@code Handler}. This makes it possible to run
+ * (and profile) the whole protocol without docker or a network.
+ * Use {@code new LoopbackTransport.Network()} to create the queues, and
+ * {@code network.transport(i)} to get the transport of party i.
+ */
+public class LoopbackTransport implements Transport {
+    private static final int STREAM_BUFFER_SIZE = 1 << 16;
+    private final Network network;
+    private final int id;
+    private Thread dispatcher;
+
+    /**
+     * The queues of all the parties.
+     */
+    public static class Network {
+        private final List<BlockingQueue<byte[]>> messages = new ArrayList<>();
+        private final List<BlockingQueue<InputStream>> streams = new ArrayList<>();
+
+        public Network() {
+            for (int i = 0; i <= Utils.NUM_PEERS; i++) {
+                messages.add(new LinkedBlockingQueue<>());
+                streams.add(new LinkedBlockingQueue<>());
+            }
+        }
+
+        /**
+         * @return the transport used by party {@code id}.
+         */
+        public LoopbackTransport transport(int id) {
+            return new LoopbackTransport(this, id);
+        }
+    }
+
+    private LoopbackTransport(Network network, int id) {
+        this.network = network;
+        this.id = id;
+    }
+
+    @Override
+    public void send(int to, ByteBuffer message) {
+        byte[] copy = new byte[message.remaining()];
+        message.duplicate().get(copy);
+        network.messages.get(to).add(copy);
+    }
+
+    @Override
+    public synchronized void listen(Handler handler) {
+        if (dispatcher != null) {
+            throw new IllegalStateException("Already listening");
+        }
+        BlockingQueue<byte[]> queue = network.messages.get(id);
+        dispatcher = new Thread(() -> {
+            try {
+                while (true) {
+                    try {
+                        handler.onMessage(ByteBuffer.wrap(queue.take()));
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // The transport was closed.
+            }
+        }, "loopback-" + id);
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    @Override
+    public OutputStream connect(int to) throws IOException {
+        PipedInputStream in = new PipedInputStream(STREAM_BUFFER_SIZE);
+        PipedOutputStream out = new PipedOutputStream(in);
+        network.streams.get(to).add(in);
+        return out;
+    }
+
+    @Override
+    public InputStream accept() throws IOException {
+        return take(network.streams.get(id));
+    }
+
+    @Override
+    public synchronized void close() {
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+        }
+    }
+
+    private static <T> T take(BlockingQueue<T> queue) throws IOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
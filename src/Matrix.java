@@ -0,0 +1,159 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A dense matrix of field elements, stored row by row in a single {@code long[]}.
+ * A matrix either holds public values, or this peer's shares of a matrix of
+ * secrets, element by element (see {@code MatrixTriple}).
+ * <p>
+ * {@code multiply()} is blocked for the cache: the product is computed in tiles of
+ * {@code BLOCK} x {@code BLOCK}, so that the rows of the right matrix that a tile
+ * reads stay in the cache while every row of the left matrix in the tile uses them.
+ * The innermost loop runs along a row of both the right matrix and the product, so
+ * it reads and writes memory sequentially. The row blocks are split among the cores
+ * with fork-join, and every row block writes only its own rows of the product, so
+ * no locking is needed.
+ */
+public class Matrix {
+    private static final int BLOCK = 64;
+    final int rows;
+    final int cols;
+    final long[] values;
+
+    /**
+     * A matrix of zeros.
+     */
+    Matrix(int rows, int cols) {
+        this(rows, cols, new long[rows * cols]);
+    }
+
+    /**
+     * @param values the elements, row by row, which are not copied.
+     */
+    Matrix(int rows, int cols, long[] values) {
+        if (values.length != rows * cols) {
+            throw new IllegalArgumentException("Expected " + rows + "x" + cols + "=" +
+                    rows * cols + " values, got " + values.length);
+        }
+        this.rows = rows;
+        this.cols = cols;
+        this.values = values;
+    }
+
+    long get(int row, int col) {
+        return values[row * cols + col];
+    }
+
+    /**
+     * @return this + other, element by element.
+     */
+    Matrix add(Matrix other) {
+        checkSameSize(other);
+        Field field = Utils.FIELD;
+        long[] sum = new long[values.length];
+        for (int k = 0; k < sum.length; k++) {
+            sum[k] = field.add(values[k], other.values[k]);
+        }
+        return new Matrix(rows, cols, sum);
+    }
+
+    /**
+     * @return this - other, element by element.
+     */
+    Matrix subtract(Matrix other) {
+        checkSameSize(other);
+        Field field = Utils.FIELD;
+        long[] difference = new long[values.length];
+        for (int k = 0; k < difference.length; k++) {
+            difference[k] = field.subtract(values[k], other.values[k]);
+        }
+        return new Matrix(rows, cols, difference);
+    }
+
+    /**
+     * @return the matrix product this * other.
+     * @throws IllegalArgumentException if the number of columns of this matrix is
+     *                                  not the number of rows of {@code other}.
+     */
+    Matrix multiply(Matrix other) {
+        if (cols != other.rows) {
+            throw new IllegalArgumentException("Can't multiply a " + rows + "x" + cols +
+                    " matrix by a " + other.rows + "x" + other.cols + " matrix");
+        }
+        Matrix product = new Matrix(rows, other.cols);
+        ForkJoinPool.commonPool().invoke(new RowBlocks(this, other, product, 0, rows));
+        return product;
+    }
+
+    /**
+     * Computes the rows [from, to) of {@code product}, which is at most
+     * {@code BLOCK} rows, tile by tile.
+     */
+    private static void multiplyRows(Matrix left, Matrix right, Matrix product, int from,
+                                     int to) {
+        Field field = Utils.FIELD;
+        int inner = left.cols;
+        int cols = right.cols;
+        long[] a = left.values;
+        long[] b = right.values;
+        long[] c = product.values;
+        for (int kk = 0; kk < inner; kk += BLOCK) {
+            int kEnd = Math.min(kk + BLOCK, inner);
+            for (int jj = 0; jj < cols; jj += BLOCK) {
+                int jEnd = Math.min(jj + BLOCK, cols);
+                for (int i = from; i < to; i++) {
+                    int row = i * cols;
+                    for (int k = kk; k < kEnd; k++) {
+                        long aik = a[i * inner + k];
+                        if (aik == 0) {
+                            continue;
+                        }
+                        int rightRow = k * cols;
+                        for (int j = jj; j < jEnd; j++) {
+                            c[row + j] = field.add(c[row + j],
+                                    field.multiply(aik, b[rightRow + j]));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void checkSameSize(Matrix other) {
+        if (other.rows != rows || other.cols != cols) {
+            throw new IllegalArgumentException("Matrices of different sizes: " + rows +
+                    "x" + cols + " and " + other.rows + "x" + other.cols);
+        }
+    }
+
+    /**
+     * Halves a range of rows until it is at most {@code BLOCK} rows.
+     */
+    private static class RowBlocks extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Matrix left;
+        private final Matrix right;
+        private final Matrix product;
+        private final int from;
+        private final int to;
+
+        RowBlocks(Matrix left, Matrix right, Matrix product, int from, int to) {
+            this.left = left;
+            this.right = right;
+            this.product = product;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BLOCK) {
+                multiplyRows(left, right, product, from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RowBlocks(left, right, product, from, middle),
+                    new RowBlocks(left, right, product, middle, to));
+        }
+    }
+}
@@ -0,0 +1,87 @@
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A Beaver triple of matrices: a peer's shares of random matrices A (n x k) and
+ * B (k x m), and of their product C = A*B. It multiplies a single pair of shared
+ * matrices X*Y (see {@code Peer.multiplyMatrices()}), for which only X-A and Y-B
+ * are opened: n*k + k*m values, instead of the n*k*m that multiplying every pair of
+ * elements with scalar triples would open.
+ * Like a scalar triple, a matrix triple must be used only once, which
+ * {@code claim()} makes sure of.
+ */
+public class MatrixTriple {
+    final Matrix a;
+    final Matrix b;
+    final Matrix c;
+    private final AtomicBoolean used = new AtomicBoolean();
+
+    MatrixTriple(Matrix a, Matrix b, Matrix c) {
+        this.a = a;
+        this.b = b;
+        this.c = c;
+    }
+
+    /**
+     * Generates a random matrix triple and shares it among peers 1 to
+     * {@code Utils.NUM_PEERS}, element by element, with polynomials of degree
+     * {@code Utils.DEGREE}. Peer i gets f(i), like with {@code ParallelDealer.deal()},
+     * and like it, on all the cores of the dealer.
+     *
+     * @return an array such that result[i] holds the shares of peer i. result[0] is
+     * not used.
+     */
+    static MatrixTriple[] deal(int rows, int inner, int cols) {
+        Matrix a = random(rows, inner);
+        Matrix b = random(inner, cols);
+        Matrix c = a.multiply(b);
+        Matrix[] sharesOfA = share(a);
+        Matrix[] sharesOfB = share(b);
+        Matrix[] sharesOfC = share(c);
+        MatrixTriple[] triples = new MatrixTriple[Utils.NUM_PEERS + 1];
+        for (int i = 1; i <= Utils.NUM_PEERS; i++) {
+            triples[i] = new MatrixTriple(sharesOfA[i], sharesOfB[i], sharesOfC[i]);
+        }
+        return triples;
+    }
+
+    /**
+     * Marks the triple as used, for multiplying an x by a y.
+     *
+     * @throws IllegalArgumentException if the triple is not the right size for them.
+     * @throws IllegalStateException    if the triple was used before.
+     */
+    void claim(Matrix x, Matrix y) {
+        if (x.rows != a.rows || x.cols != a.cols || y.rows != b.rows || y.cols != b.cols) {
+            throw new IllegalArgumentException("A triple for " + a.rows + "x" + a.cols +
+                    " times " + b.rows + "x" + b.cols + " can't multiply " + x.rows + "x" +
+                    x.cols + " times " + y.rows + "x" + y.cols);
+        }
+        if (!used.compareAndSet(false, true)) {
+            throw new IllegalStateException("The triple was already used");
+        }
+    }
+
+    private static Matrix random(int rows, int cols) {
+        long[] values = new long[rows * cols];
+        ParallelDealer.forEachChunk(values.length, (from, to, random) -> {
+            for (int j = from; j < to; j++) {
+                values[j] = Utils.FIELD.random(random);
+            }
+        });
+        return new Matrix(rows, cols, values);
+    }
+
+    /**
+     * @return result[i] holds the shares of peer i of every element of
+     * {@code secret}.
+     */
+    private static Matrix[] share(Matrix secret) {
+        long[][] shares = ParallelDealer.share(secret.values);
+        int numPeers = Utils.NUM_PEERS;
+        Matrix[] matrices = new Matrix[numPeers + 1];
+        for (int i = 1; i <= numPeers; i++) {
+            matrices[i] = new Matrix(secret.rows, secret.cols, shares[i]);
+        }
+        return matrices;
+    }
+}
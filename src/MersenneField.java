@@ -0,0 +1,95 @@
+import java.util.Random;
+import java.util.SplittableRandom;
+
+/**
+ * A {@code Field} over the Mersenne prime p=2^61-1. Since 2^61 = 1 (mod p), a
+ * product can be reduced with a shift, a mask and an add instead of a division, and
+ * none of the operations below allocate.
+ */
+public class MersenneField implements Field {
+    public static final long P = (1L << 61) - 1;
+
+    @Override
+    public long modulus() {
+        return P;
+    }
+
+    @Override
+    public long reduce(long value) {
+        return Math.floorMod(value, P);
+    }
+
+    @Override
+    public long add(long a, long b) {
+        long sum = a + b;
+        return sum >= P ? sum - P : sum;
+    }
+
+    @Override
+    public long subtract(long a, long b) {
+        long difference = a - b;
+        return difference < 0 ? difference + P : difference;
+    }
+
+    /**
+     * a*b is at most 122 bits long. Writing it as hi*2^64+lo, the product is
+     * ((hi << 3) | (lo >>> 61)) * 2^61 + (lo & P), and since 2^61 = 1 (mod p) the
+     * two halves just need to be added together.
+     */
+    @Override
+    public long multiply(long a, long b) {
+        long lo = a * b;
+        long hi = Math.multiplyHigh(a, b);
+        long result = (lo & P) + ((hi << 3) | (lo >>> 61));
+        return result >= P ? result - P : result;
+    }
+
+    @Override
+    public long negate(long a) {
+        return a == 0 ? 0 : P - a;
+    }
+
+    /**
+     * Uses Fermat's little theorem, a^(p-2) = a^-1 (mod p).
+     */
+    @Override
+    public long inverse(long a) {
+        if (a == 0) {
+            throw new ArithmeticException("0 has no inverse");
+        }
+        long result = 1;
+        long base = a;
+        long exponent = P - 2;
+        while (exponent > 0) {
+            if ((exponent & 1) == 1) {
+                result = multiply(result, base);
+            }
+            base = multiply(base, base);
+            exponent >>>= 1;
+        }
+        return result;
+    }
+
+    @Override
+    public long random(Random r) {
+        long value;
+        do {
+            value = r.nextLong() >>> 3;
+        } while (value == P);
+        return value;
+    }
+
+    @Override
+    public long random(SplittableRandom r) {
+        long value;
+        do {
+            value = r.nextLong() >>> 3;
+        } while (value == P);
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "GF(2^61-1)";
+    }
+}
@@ -0,0 +1,328 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts what a party does, so that a slow run can be traced to the network, the
+ * dealer or the arithmetic:
+ * - messages and bytes sent to and received from every party.
+ * - how long every {@code Peer.open()} took, how long it waited for shares, how far
+ * the stragglers were behind, and how long reconstructing and encoding took.
+ * - how many triples were dealt and claimed.
+ * - how many messages the reliable transport gave up on.
+ * All parties of a process share the same metrics (so a {@code LocalCluster} adds
+ * up all of them). Recording is a few atomic additions and, except when a party
+ * with a larger id than any before is first seen, never allocates, so it can stay
+ * on in the hot paths.
+ * Durations are wall clock time; reconstructing and encoding run on a single thread
+ * without blocking, so that is their CPU time.
+ * <p>
+ * {@code expose()} publishes the metrics as the JMX MXBean {@code OBJECT_NAME}, and,
+ * if {@code Utils.METRICS_PORT} is set, in the Prometheus text format at
+ * http://host:port/metrics.
+ */
+public class Metrics {
+    static final String OBJECT_NAME = "mpc:type=Metrics";
+    private static final String PREFIX = "mpc_";
+    /**
+     * The buckets that are exported, so that every scrape has the same ones: from
+     * [0, 2^11) nanoseconds (about 2 microseconds) to [2^35, 2^36) (about a minute).
+     */
+    private static final int FIRST_BUCKET = 10;
+    private static final int LAST_BUCKET = 35;
+
+    /**
+     * Parties with a larger id aren't counted, so that a message with a bogus sender
+     * can't make the array below grow without bound.
+     */
+    private static final int MAX_PARTY = 1 << 12;
+
+    /**
+     * The traffic of every party, indexed by id, up to the largest id seen so far.
+     * The array is grown, copy on write, when a larger id is first seen, so the
+     * metrics don't depend on {@code Utils.NUM_PEERS} being configured before they
+     * are first used, and recording only reads it.
+     */
+    private static volatile Party[] parties = new Party[0];
+    static final LongAdder TRIPLES_DEALT = new LongAdder();
+    static final LongAdder TRIPLES_CLAIMED = new LongAdder();
+    static final LongAdder MESSAGES_ABANDONED = new LongAdder();
+    static final Histogram OPEN = new Histogram("open_seconds",
+            "Time to open shared values, from sending the shares to having the secrets");
+    static final Histogram SHARE_WAIT = new Histogram("share_wait_seconds",
+            "Time spent waiting for enough shares to arrive in a round");
+    static final Histogram STRAGGLER_LAG = new Histogram("straggler_lag_seconds",
+            "How long after a reconstruction started the shares it didn't wait for " +
+                    "arrived");
+    static final Histogram RECONSTRUCT = new Histogram("reconstruct_seconds",
+            "Time to reconstruct the secrets from the shares of a round");
+    static final Histogram ENCODE = new Histogram("encode_seconds",
+            "Time to encode a share into a message");
+    private static final Histogram[] HISTOGRAMS =
+            {OPEN, SHARE_WAIT, STRAGGLER_LAG, RECONSTRUCT, ENCODE};
+
+    /**
+     * The messages and bytes sent to and received from a single party.
+     */
+    private static class Party {
+        final LongAdder messagesSent = new LongAdder();
+        final LongAdder bytesSent = new LongAdder();
+        final LongAdder messagesReceived = new LongAdder();
+        final LongAdder bytesReceived = new LongAdder();
+    }
+
+    /**
+     * A histogram of durations in nanoseconds, with a bucket per power of two:
+     * bucket b counts the durations in [2^b, 2^(b+1)). That is coarse, but recording
+     * is a single increment, and the relative error stays the same from microseconds
+     * to minutes.
+     */
+    static class Histogram {
+        final String name;
+        final String help;
+        private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+
+        Histogram(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        /**
+         * Records the time since {@code startNanos}, a value of
+         * {@code System.nanoTime()}.
+         */
+        void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        void record(long nanos) {
+            long value = Math.max(nanos, 1);
+            buckets.incrementAndGet(Long.SIZE - 1 - Long.numberOfLeadingZeros(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+        }
+    }
+
+    /**
+     * The metrics as seen through JMX: every value by its name in the Prometheus
+     * format, and the whole Prometheus text.
+     */
+    public interface MetricsMXBean {
+        Map<String, Long> getValues();
+
+        String getPrometheusText();
+    }
+
+    private static class Bean implements MetricsMXBean {
+        @Override
+        public Map<String, Long> getValues() {
+            return values();
+        }
+
+        @Override
+        public String getPrometheusText() {
+            return prometheusText();
+        }
+    }
+
+    /**
+     * @return the traffic of party {@code id}, which is at most {@code MAX_PARTY}.
+     */
+    private static Party party(int id) {
+        Party[] current = parties;
+        return id < current.length ? current[id] : grow(id)[id];
+    }
+
+    /**
+     * Makes room for the parties up to {@code id}.
+     *
+     * @return the new array.
+     */
+    private static synchronized Party[] grow(int id) {
+        Party[] current = parties;
+        if (id < current.length) {
+            return current;
+        }
+        Party[] grown = Arrays.copyOf(current, id + 1);
+        for (int i = current.length; i < grown.length; i++) {
+            grown[i] = new Party();
+        }
+        parties = grown;
+        return grown;
+    }
+
+    /**
+     * @return every party seen so far, and at least the Runner and every peer, so
+     * that every scrape has the same ones.
+     */
+    private static Party[] parties() {
+        Party[] current = parties;
+        return Utils.NUM_PEERS < current.length ? current : grow(Utils.NUM_PEERS);
+    }
+
+    /**
+     * Records a message of {@code bytes} bytes sent to party {@code to}.
+     */
+    static void sent(int to, int bytes) {
+        if (to >= 0 && to <= MAX_PARTY) {
+            Party party = party(to);
+            party.messagesSent.increment();
+            party.bytesSent.add(bytes);
+        }
+    }
+
+    /**
+     * Records a message of {@code bytes} bytes received from party {@code from}.
+     */
+    static void received(int from, int bytes) {
+        if (from >= 0 && from <= MAX_PARTY) {
+            Party party = party(from);
+            party.messagesReceived.increment();
+            party.bytesReceived.add(bytes);
+        }
+    }
+
+    /**
+     * Registers the MXBean and starts the HTTP endpoint if
+     * {@code Utils.METRICS_PORT} is set. Does nothing if the MXBean is already
+     * registered.
+     *
+     * @throws IOException if the HTTP port can't be bound.
+     */
+    static synchronized void expose() throws IOException {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                return;
+            }
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Can't register " + OBJECT_NAME, e);
+        }
+        if (Utils.METRICS_PORT < 0) {
+            return;
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress(Utils.METRICS_PORT), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = prometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type",
+                    "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        System.out.println("Serving metrics on port " + Utils.METRICS_PORT);
+    }
+
+    /**
+     * @return every counter, and the count and sum of every histogram, by name.
+     */
+    static Map<String, Long> values() {
+        LinkedHashMap<String, Long> values = new LinkedHashMap<>();
+        Party[] parties = parties();
+        for (int i = 0; i < parties.length; i++) {
+            String label = "{party=\"" + i + "\"}";
+            Party party = parties[i];
+            values.put(PREFIX + "messages_sent_total" + label, party.messagesSent.sum());
+            values.put(PREFIX + "bytes_sent_total" + label, party.bytesSent.sum());
+            values.put(PREFIX + "messages_received_total" + label,
+                    party.messagesReceived.sum());
+            values.put(PREFIX + "bytes_received_total" + label, party.bytesReceived.sum());
+        }
+        values.put(PREFIX + "triples_dealt_total", TRIPLES_DEALT.sum());
+        values.put(PREFIX + "triples_claimed_total", TRIPLES_CLAIMED.sum());
+        values.put(PREFIX + "messages_abandoned_total", MESSAGES_ABANDONED.sum());
+        for (Histogram histogram : HISTOGRAMS) {
+            values.put(PREFIX + histogram.name + "_count", histogram.count.get());
+            values.put(PREFIX + histogram.name + "_sum_nanos", histogram.sum.get());
+        }
+        return values;
+    }
+
+    /**
+     * @return all the metrics in the Prometheus text format.
+     */
+    static String prometheusText() {
+        StringBuilder text = new StringBuilder();
+        Party[] parties = parties();
+        counter(text, "messages_sent_total", "Messages sent to a party", parties,
+                party -> party.messagesSent);
+        counter(text, "bytes_sent_total", "Bytes sent to a party", parties,
+                party -> party.bytesSent);
+        counter(text, "messages_received_total", "Messages received from a party",
+                parties, party -> party.messagesReceived);
+        counter(text, "bytes_received_total", "Bytes received from a party", parties,
+                party -> party.bytesReceived);
+        counter(text, "triples_dealt_total", "Triples received from the dealer",
+                TRIPLES_DEALT);
+        counter(text, "triples_claimed_total", "Triples claimed by multiplications",
+                TRIPLES_CLAIMED);
+        counter(text, "messages_abandoned_total",
+                "Messages that were given up on after all their attempts",
+                MESSAGES_ABANDONED);
+        for (Histogram histogram : HISTOGRAMS) {
+            String name = PREFIX + histogram.name;
+            text.append("# HELP ").append(name).append(' ').append(histogram.help).append('\n');
+            text.append("# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0;
+            for (int b = 0; b <= LAST_BUCKET; b++) {
+                cumulative += histogram.buckets.get(b);
+                if (b < FIRST_BUCKET) {
+                    continue;
+                }
+                double le = Math.pow(2, b + 1) / 1e9;
+                text.append(name).append("_bucket{le=\"").append(le).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            long count = histogram.count.get();
+            text.append(name).append("_bucket{le=\"+Inf\"} ").append(count).append('\n');
+            text.append(name).append("_sum ").append(histogram.sum.get() / 1e9).append('\n');
+            text.append(name).append("_count ").append(count).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Appends a counter.
+     */
+    private static void counter(StringBuilder text, String name, String help,
+                                LongAdder value) {
+        name = PREFIX + name;
+        header(text, name, help);
+        text.append(name).append(' ').append(value.sum()).append('\n');
+    }
+
+    /**
+     * Appends a counter with a value per party, labelled by party.
+     */
+    private static void counter(StringBuilder text, String name, String help,
+                                Party[] parties, Function<Party, LongAdder> value) {
+        name = PREFIX + name;
+        header(text, name, help);
+        for (int i = 0; i < parties.length; i++) {
+            text.append(name).append("{party=\"").append(i).append("\"} ")
+                    .append(value.apply(parties[i]).sum()).append('\n');
+        }
+    }
+
+    private static void header(StringBuilder text, String name, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" counter\n");
+    }
+}
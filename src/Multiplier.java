@@ -0,0 +1,21 @@
+import java.io.IOException;
+
+/**
+ * Multiplies many pairs of shared values at once, in the session of a peer. Shares
+ * go in and come out with the same degree ({@code Utils.DEGREE}), so the protocols
+ * that multiply ({@code Peer.product()}, {@code Peer.evaluateCircuit()},
+ * {@code SharedVector}) work the same with any implementation:
+ * - {@code BeaverMultiplier}, with triples from a dealer.
+ * - {@code BgwMultiplier}, without a dealer, but only with an honest majority.
+ * Every peer of the session must use the same kind of multiplier.
+ */
+public interface Multiplier {
+    /**
+     * @param peer the session to multiply in.
+     * @param x    shares of the left operands.
+     * @param y    shares of the right operands.
+     * @return shares of x[k]*y[k].
+     * @throws IOException on socket.send().
+     */
+    long[] multiply(Peer peer, long[] x, long[] y) throws IOException;
+}
@@ -0,0 +1,257 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Packed (Franklin-Yung) secret sharing: a single polynomial carries k secrets
+ * instead of one, so every peer gets one share for k secrets instead of k shares.
+ * The secrets s[0], s[1]...s[k-1] are put at the points 0, -1...-(k-1), which are
+ * never the x of a peer (see {@code Utils.getIDToXMapping()}). To keep any t shares
+ * from revealing anything, the polynomial also goes through t random values, so it
+ * has degree t+k-1 and t+k shares are needed to reconstruct the secrets.
+ * <p>
+ * Packed shares of the same packing can be added locally, which adds the secrets
+ * element by element. Multiplying two packed sharings with a packed Beaver triple
+ * (see {@code dealTriples()} and {@code Peer.multiplyPacked()}) multiplies the secrets element by element, but
+ * the result has degree t+2k-2, so it needs at least t+2k-1 peers to be opened.
+ */
+public class PackedSharing {
+    final int k;
+    final int t;
+    /**
+     * The k points of the secrets, followed by the t points of the random values.
+     */
+    private final int[] points;
+
+    /**
+     * @param k the number of secrets per polynomial.
+     * @param t any t shares reveal nothing about the secrets.
+     */
+    public PackedSharing(int k, int t) {
+        if (k < 1 || t < 1) {
+            throw new IllegalArgumentException("Need k >= 1 and t >= 1, got k=" + k +
+                    " and t=" + t);
+        }
+        this.k = k;
+        this.t = t;
+        points = new int[t + k];
+        for (int j = 0; j < points.length; j++) {
+            points[j] = secretPoint(j);
+        }
+    }
+
+    /**
+     * @return the point that the j-th secret is put at.
+     */
+    static int secretPoint(int j) {
+        return -j;
+    }
+
+    /**
+     * @return the degree of a packed sharing, t+k-1.
+     */
+    public int degree() {
+        return t + k - 1;
+    }
+
+    /**
+     * @return the degree of the product of two packed sharings, t+2k-2. See
+     * {@code beaverCombine()}.
+     */
+    public int productDegree() {
+        return degree() + k - 1;
+    }
+
+    /**
+     * Splits up to k secrets into packed shares, such that result[i] is the share for
+     * the peer at x[i]. Missing secrets are 0.
+     * The polynomial is given by its values at {@code points} (the secrets, then t
+     * random values), so the share at x[i] is their Lagrange interpolation at x[i].
+     *
+     * @param secrets the secrets, at most k of them.
+     * @param x       the points of the peers.
+     * @param result  an array at least as long as {@code x} to store the shares in.
+     * @param r       the source of the random values.
+     */
+    public void share(long[] secrets, int[] x, long[] result, Random r) {
+        if (secrets.length > k) {
+            throw new IllegalArgumentException("Can't pack " + secrets.length +
+                    " secrets into " + k);
+        }
+        Field field = Utils.FIELD;
+        long[] values = new long[points.length];
+        for (int j = 0; j < secrets.length; j++) {
+            values[j] = field.reduce(secrets[j]);
+        }
+        for (int j = k; j < values.length; j++) {
+            values[j] = field.random(r);
+        }
+        for (int i = 0; i < x.length; i++) {
+            result[i] = interpolate(points, values, points.length, x[i]);
+        }
+    }
+
+    /**
+     * Splits a vector of secrets into packed sharings of k secrets each, among peers
+     * 1 to {@code Utils.NUM_PEERS}: the m-th sharing holds the secrets
+     * [m*k, (m+1)*k), and the last one is padded with zeros. Peer i gets the share
+     * at x = i.
+     *
+     * @return an array such that result[i][m] is the share of peer i of the m-th
+     * sharing. result[0] is not used.
+     */
+    public long[][] share(long[] secrets, Random r) {
+        int numPeers = Utils.NUM_PEERS;
+        int numSharings = (secrets.length + k - 1) / k;
+        int[] x = new int[numPeers];
+        for (int i = 0; i < numPeers; i++) {
+            x[i] = i + 1;
+        }
+        long[][] shares = new long[numPeers + 1][numSharings];
+        long[] sharing = new long[numPeers];
+        for (int m = 0; m < numSharings; m++) {
+            share(Arrays.copyOfRange(secrets, m * k, Math.min((m + 1) * k,
+                    secrets.length)), x, sharing, r);
+            for (int i = 1; i <= numPeers; i++) {
+                shares[i][m] = sharing[i - 1];
+            }
+        }
+        return shares;
+    }
+
+    /**
+     * Deals n packed Beaver triples among peers 1 to {@code Utils.NUM_PEERS}: packed
+     * sharings of random vectors a and b of k values each, and of c, their element
+     * by element product, all of degree {@code degree()}. Like the secrets they
+     * multiply, peer i gets the shares at x = i. These are the triples that
+     * {@code Peer.multiplyPacked()} takes.
+     *
+     * @return an array such that result[i] holds the triples of peer i. result[0] is
+     * not used.
+     */
+    public Utils.OneMillionBeaverTriples[] dealTriples(int n, Random r) {
+        Field field = Utils.FIELD;
+        long[] a = new long[n * k];
+        long[] b = new long[n * k];
+        long[] c = new long[n * k];
+        for (int j = 0; j < c.length; j++) {
+            a[j] = field.random(r);
+            b[j] = field.random(r);
+            c[j] = field.multiply(a[j], b[j]);
+        }
+        long[][] sharesOfA = share(a, r);
+        long[][] sharesOfB = share(b, r);
+        long[][] sharesOfC = share(c, r);
+        Utils.OneMillionBeaverTriples[] triples =
+                new Utils.OneMillionBeaverTriples[Utils.NUM_PEERS + 1];
+        for (int i = 1; i <= Utils.NUM_PEERS; i++) {
+            triples[i] = new Utils.OneMillionBeaverTriples(sharesOfA[i], sharesOfB[i],
+                    sharesOfC[i]);
+        }
+        return triples;
+    }
+
+    /**
+     * Reconstructs the k secrets of a packed sharing from the shares of at least
+     * {@code degree + 1} peers.
+     *
+     * @param x      the points of the peers. Only the first {@code degree + 1} are
+     *               used.
+     * @param y      the shares of the peers.
+     * @param degree the degree of the sharing, {@code degree()} for fresh or added
+     *               sharings and {@code productDegree()} for products.
+     * @return the k secrets.
+     * @throws UnsupportedPolynomialException if there are less than {@code degree + 1}
+     *                                        shares.
+     */
+    public long[] reconstruct(int[] x, long[] y, int degree) {
+        checkPoints(x.length, y.length, degree);
+        long[] secrets = new long[k];
+        for (int j = 0; j < k; j++) {
+            secrets[j] = interpolate(x, y, degree + 1, secretPoint(j));
+        }
+        return secrets;
+    }
+
+    /**
+     * Same as {@code reconstruct()}, but for many packed sharings that were all
+     * evaluated at the same x: y[i][m] is the share of the m-th sharing of the peer at
+     * x[i].
+     *
+     * @return an array such that result[m*k+j] is the j-th secret of the m-th sharing.
+     */
+    public long[] reconstruct(int[] x, long[][] y, int degree) {
+        checkPoints(x.length, y.length, degree);
+        Field field = Utils.FIELD;
+        int numPoints = degree + 1;
+        int numSharings = y[0].length;
+        long[] secrets = new long[numSharings * k];
+        for (int j = 0; j < k; j++) {
+            long[] l = Polynomial.getLagrangeCoefficients(x, numPoints, secretPoint(j));
+            for (int i = 0; i < numPoints; i++) {
+                long[] yi = y[i];
+                for (int m = 0; m < numSharings; m++) {
+                    secrets[m * k + j] = field.add(secrets[m * k + j],
+                            field.multiply(l[i], yi[m]));
+                }
+            }
+        }
+        return secrets;
+    }
+
+    /**
+     * Returns the share at x of a vector of k public values, ie. the value at x of
+     * the polynomial of degree k-1 that goes through all of them. Multiplying a packed
+     * share by it multiplies every secret by its public value, and adds k-1 to the
+     * degree.
+     */
+    public long publicShare(long[] values, int x) {
+        return interpolate(points, values, k, x);
+    }
+
+    /**
+     * The local part of a packed Beaver multiplication, the packed version of
+     * {@code Peer.beaverCombine()}. Given packed shares of a triple (a, b, c=a*b) and
+     * the opened vectors xPrime=x-a and yPrime=y-b, returns this peer's share of
+     * x*y = c + xPrime*b + yPrime*a + xPrime*yPrime, which has degree
+     * {@code productDegree()}.
+     *
+     * @param x the point of this peer.
+     */
+    public long beaverCombine(long c_i, long a_i, long b_i, long[] xPrime,
+                              long[] yPrime, int x) {
+        Field field = Utils.FIELD;
+        long[] xPrimeYPrime = new long[k];
+        for (int j = 0; j < k; j++) {
+            xPrimeYPrime[j] = field.multiply(xPrime[j], yPrime[j]);
+        }
+        long xPrimeBi = field.multiply(publicShare(xPrime, x), b_i);
+        long yPrimeAi = field.multiply(publicShare(yPrime, x), a_i);
+        return field.add(field.add(c_i, xPrimeBi),
+                field.add(yPrimeAi, publicShare(xPrimeYPrime, x)));
+    }
+
+    /**
+     * Returns f(at), where f is the polynomial that goes through the first
+     * {@code numPoints} points (x[i], y[i]).
+     */
+    private static long interpolate(int[] x, long[] y, int numPoints, int at) {
+        Field field = Utils.FIELD;
+        long[] l = Polynomial.getLagrangeCoefficients(x, numPoints, at);
+        long result = 0;
+        for (int i = 0; i < numPoints; i++) {
+            result = field.add(result, field.multiply(l[i], y[i]));
+        }
+        return result;
+    }
+
+    private static void checkPoints(int numX, int numY, int degree) {
+        if (numX < degree + 1 || numY < degree + 1) {
+            throw new UnsupportedPolynomialException(degree, Math.min(numX, numY));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "packed(k=" + k + ",t=" + t + ")";
+    }
+}
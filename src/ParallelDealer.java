@@ -0,0 +1,143 @@
+import java.security.SecureRandom;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Generates and shares Beaver triples on all the cores of the dealer. The triples
+ * are split into chunks with fork-join: a range of triples is halved until it is at
+ * most {@code CHUNK} long, and every chunk is filled by whichever worker picks it
+ * up. Every chunk has its own {@code SplittableRandom}, split off from the one of
+ * its parent range, so workers never share a generator and the streams are
+ * independent. The root generator is seeded from {@code SecureRandom}.
+ * The shares are written straight into one preallocated array per peer; chunks
+ * write to disjoint ranges of it, so no locking is needed.
+ */
+public class ParallelDealer {
+    private static final int CHUNK = 4096;
+
+    /**
+     * Fills the triples [from, to) using {@code random}.
+     */
+    interface Chunk {
+        void fill(int from, int to, SplittableRandom random);
+    }
+
+    /**
+     * Splits the triples [0, n) into chunks and fills them in parallel.
+     */
+    static void forEachChunk(int n, Chunk chunk) {
+        SplittableRandom random = new SplittableRandom(new SecureRandom().nextLong());
+        ForkJoinPool.commonPool().invoke(new Task(0, n, random, chunk));
+    }
+
+    /**
+     * Generates {@code n} random triples and shares them among peers 1 to
+     * {@code Utils.NUM_PEERS} with polynomials of degree {@code Utils.DEGREE}. Peer
+     * i gets f(i), like with {@code Utils.getIDToXWithoutRandomization()}.
+     *
+     * @return an array such that result[i] holds the shares of peer i. result[0] is
+     * not used.
+     */
+    static Utils.OneMillionBeaverTriples[] deal(int n) {
+        int numPeers = Utils.NUM_PEERS;
+        long[][] a = new long[numPeers + 1][n];
+        long[][] b = new long[numPeers + 1][n];
+        long[][] c = new long[numPeers + 1][n];
+        long[] x = points();
+        forEachChunk(n, (from, to, random) -> {
+            Field field = Utils.FIELD;
+            long[] coefficients = new long[Utils.DEGREE + 1];
+            long[] values = new long[numPeers];
+            for (int j = from; j < to; j++) {
+                long secretA = field.random(random);
+                long secretB = field.random(random);
+                long secretC = field.multiply(secretA, secretB);
+                share(secretA, random, coefficients, x, values, a, j);
+                share(secretB, random, coefficients, x, values, b, j);
+                share(secretC, random, coefficients, x, values, c, j);
+            }
+        });
+        Utils.OneMillionBeaverTriples[] triples = new Utils.OneMillionBeaverTriples[numPeers + 1];
+        for (int i = 1; i <= numPeers; i++) {
+            triples[i] = new Utils.OneMillionBeaverTriples(a[i], b[i], c[i]);
+        }
+        return triples;
+    }
+
+    /**
+     * Shares every secret with a random polynomial of degree {@code Utils.DEGREE}
+     * among peers 1 to {@code Utils.NUM_PEERS}, in parallel like {@code deal()}.
+     * Peer i gets f(i).
+     *
+     * @return an array such that result[i][j] is the share of peer i of secrets[j].
+     * result[0] is not used.
+     */
+    static long[][] share(long[] secrets) {
+        int numPeers = Utils.NUM_PEERS;
+        long[][] shares = new long[numPeers + 1][secrets.length];
+        long[] x = points();
+        forEachChunk(secrets.length, (from, to, random) -> {
+            long[] coefficients = new long[Utils.DEGREE + 1];
+            long[] values = new long[numPeers];
+            for (int j = from; j < to; j++) {
+                share(secrets[j], random, coefficients, x, values, shares, j);
+            }
+        });
+        return shares;
+    }
+
+    /**
+     * @return the x of peers 1 to {@code Utils.NUM_PEERS}, ie. their ids.
+     */
+    private static long[] points() {
+        long[] x = new long[Utils.NUM_PEERS];
+        for (int i = 1; i <= Utils.NUM_PEERS; i++) {
+            x[i - 1] = Utils.FIELD.reduce(i);
+        }
+        return x;
+    }
+
+    /**
+     * Shares a secret with a random polynomial, such that shares[i][j] is the value
+     * at x[i-1]. {@code coefficients} and {@code values} are scratch space, so a
+     * chunk allocates nothing per triple.
+     */
+    private static void share(long secret, SplittableRandom random, long[] coefficients,
+                              long[] x, long[] values, long[][] shares, int j) {
+        coefficients[0] = secret;
+        for (int k = 1; k < coefficients.length; k++) {
+            coefficients[k] = Utils.FIELD.random(random);
+        }
+        Polynomial.horner(coefficients, x, values);
+        for (int i = 0; i < values.length; i++) {
+            shares[i + 1][j] = values[i];
+        }
+    }
+
+    private static class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from;
+        private final int to;
+        private final SplittableRandom random;
+        private final Chunk chunk;
+
+        Task(int from, int to, SplittableRandom random, Chunk chunk) {
+            this.from = from;
+            this.to = to;
+            this.random = random;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK) {
+                chunk.fill(from, to, random);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Task(from, middle, random.split(), chunk),
+                    new Task(middle, to, random, chunk));
+        }
+    }
+}
@@ -1,9 +1,18 @@
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.math.BigInteger;
-import java.net.*;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -14,15 +23,78 @@ import java.util.concurrent.TimeUnit;
 public class Peer {
     public static final int PORT = 5760;
     public static final int TCP_PORT = 4874;
+    /**
+     * The most shares that fit in a single datagram, with the headers of
+     * {@code ReliableTransport} and {@code ShareCodec}.
+     */
+    static final int MAX_SHARES_PER_MESSAGE = (UdpTransport.MAX_MESSAGE_SIZE -
+            ReliableTransport.HEADER_SIZE - ShareCodec.HEADER_SIZE) / Long.BYTES;
     int id;
-    DatagramSocket datagramSocket;
+    int session;
+    int round;
+    final Transport transport;
+    private final Sessions sessions;
+    /**
+     * The peer that this is a session of (see {@code runSession()}), or this peer
+     * itself. It owns the triples from the dealer.
+     */
+    private final Peer root;
+    private Inbox inbox;
+    private ByteBuffer sendBuffer = ByteBuffer.allocate(ShareCodec.MESSAGE_SIZE);
+    private TripleStream.Receiver tripleStream;
+    private TripleStore tripleStore;
 
-    public Peer() throws SocketException {
-        datagramSocket = new DatagramSocket(PORT);
+    public Peer(Transport transport) {
+        this.transport = transport;
+        this.sessions = new Sessions();
+        this.root = this;
+    }
+
+    /**
+     * A session of {@code root}, see {@code runSession()}.
+     */
+    private Peer(Peer root, int session) {
+        this.transport = root.transport;
+        this.sessions = root.sessions;
+        this.root = root;
+        this.id = root.id;
+        beginSession(session);
+    }
+
+    /**
+     * A computation that runs in a session of its own.
+     */
+    interface Computation<T> {
+        T run(Peer session) throws IOException;
+    }
+
+    /**
+     * Runs a computation in a session of its own, on its own thread (see
+     * {@code Sessions.EXECUTOR}), concurrently with any other sessions of this peer.
+     * The computation gets a {@code Peer} of its own, which shares the id and the
+     * transport of this peer, but keeps its own rounds. Shares are routed to it by
+     * their session, so all peers must run the same computation with the same session
+     * id, which no other computation uses. The session is closed once the computation
+     * is done.
+     * Sessions don't take triples from the dealer themselves. Every session that
+     * multiplies with Beaver triples gets a {@code TriplePool} of its own, which is
+     * reserved before it starts (see {@code TriplePool.reserve()}), so all peers give
+     * it the same triples, whichever session gets to them first.
+     *
+     * @return the result of the computation.
+     */
+    <T> Future<T> runSession(int session, Computation<T> computation) {
+        return Sessions.EXECUTOR.submit(() -> {
+            try {
+                return computation.run(new Peer(root, session));
+            } finally {
+                sessions.close(session);
+            }
+        });
     }
 
     /**
-     * Calls 4 functions:
+     * Calls 5 functions:
      * - {@code reconstructSecret()}, to demonstrate reconstruction of a secret given n
      * equations and n variables.
      * - {@code demonstrateSecretShareSummation()}, to demonstrate addition of several
@@ -31,277 +103,614 @@ public class Peer {
      * only the shares.
      * - {@code demonstrateBeaverTriplesFast()}, a slightly faster way to multiply
      * secrets.
+     * - {@code demonstrateBgw()}, the same multiplication without triples from a
+     * dealer, if there is an honest majority.
+     *
+     * Each demonstration runs in its own session, so peers can move on to the next
+     * demonstration as soon as they are done with the current one. The summation
+     * doesn't need the Runner, so it runs on a thread of its own (see
+     * {@code runSession()}), at the same time as the multiplications.
      *
      * @param args STDIN, ignored.
      * @throws IOException for socket.send().
      */
     public static void main(String[] args) throws IOException {
+        Utils.configure();
+        Metrics.expose();
+        Peer peer = new Peer(new ReliableTransport(new UdpTransport(PORT, TCP_PORT)));
+        peer.run();
+    }
+
+    /**
+     * Starts receiving shares, runs all the demonstrations (see {@code main()}), then
+     * closes the transport, the stream of triples from the Runner and the triple store.
+     *
+     * @throws IOException see {@code main()}.
+     */
+    public void run() throws IOException {
+        try (transport) {
+            listen();
+            runDemonstrations();
+        } finally {
+            if (tripleStream != null) {
+                tripleStream.close();
+            }
+            if (tripleStore != null) {
+                tripleStore.close();
+            }
+        }
+    }
+
+    /**
+     * Starts receiving shares from the transport.
+     *
+     * @throws IOException see {@code Transport.listen()}.
+     */
+    void listen() throws IOException {
+        transport.listen(this::onMessage);
+    }
+
+    /**
+     * Called by the transport for every incoming message. Decodes the share in it and
+     * puts it in the inbox, where the protocol picks it up once it reaches the
+     * share's round.
+     *
+     * @param message the encoded share.
+     */
+    private void onMessage(ByteBuffer message) {
+        try {
+            int size = message.remaining();
+            Utils.ShareWrapper shareWrapper = ShareCodec.decode(message);
+            Metrics.received(shareWrapper.sender, size);
+            sessions.add(shareWrapper);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Dropping message: " + e.getMessage());
+        }
+    }
+
+    private void runDemonstrations() throws IOException {
         System.out.println("********* Demonstration 1: Secret reconstruction *********");
-        Peer peer = new Peer();
-        Utils.ShareWrapper shareWrapper = peer.init();
-        BigInteger reconstructedSecret = peer.reconstructSecret(shareWrapper);
+        beginSession(Utils.SESSION_RECONSTRUCTION);
+        Utils.ShareWrapper shareWrapper = init();
+        long reconstructedSecret = reconstructSecret(shareWrapper);
         System.out.println("Found the secret! Value: " + reconstructedSecret);
-        peer.timeout();
         System.out.println("********* Demonstration 2: Secret summation *********");
-        int privateValue = switch (peer.id) {
+        int privateValue = switch (id) {
             case 1 -> 11;
             case 2 -> 15;
             case 3 -> 28;
             case 4 -> 31;
             default -> 21;
         };
-        BigInteger summation = peer.demonstrateSecretShareSummation(privateValue);
-        System.out.println("Found the summation! Value: " + summation);
+        Future<Long> summation = runSession(Utils.SESSION_SUMMATION,
+                peer -> peer.demonstrateSecretShareSummation(privateValue));
 
-        peer.timeout();
         System.out.println("********* Demonstration 3: Secret multiplication " +
                 "(Naive version) *********");
+        beginSession(Utils.SESSION_BEAVER_NAIVE);
         long start = System.nanoTime();
-        peer.demonstrateBeaverTriplesNaive(privateValue);
+        demonstrateBeaverTriplesNaive(privateValue);
         long end = System.nanoTime();
         long elapsedTime = end - start;
         System.out.println("Sequential execution took: " +
-                TimeUnit.SECONDS.convert(elapsedTime, TimeUnit.NANOSECONDS) + "s.");
+                TimeUnit.MILLISECONDS.convert(elapsedTime, TimeUnit.NANOSECONDS) + "ms.");
 
-        peer.timeout();
         System.out.println("********* Demonstration 4: Secret multiplication (Fast " +
                 "version) *********");
+        beginSession(Utils.SESSION_BEAVER_FAST);
         start = System.nanoTime();
-        peer.demonstrateBeaverTriplesFast(privateValue);
+        demonstrateBeaverTriplesFast(privateValue);
         end = System.nanoTime();
         elapsedTime = end - start;
         System.out.println("Parallel execution took: " +
-                TimeUnit.SECONDS.convert(elapsedTime, TimeUnit.NANOSECONDS) + "s.");
+                TimeUnit.MILLISECONDS.convert(elapsedTime, TimeUnit.NANOSECONDS) + "ms.");
+
+        System.out.println("********* Demonstration 5: Secret multiplication " +
+                "(BGW, without a dealer) *********");
+        if (Utils.NUM_PEERS >= 2 * Utils.DEGREE + 1) {
+            beginSession(Utils.SESSION_BGW);
+            start = System.nanoTime();
+            demonstrateBgw(privateValue);
+            elapsedTime = System.nanoTime() - start;
+            System.out.println("BGW execution took: " +
+                    TimeUnit.MILLISECONDS.convert(elapsedTime, TimeUnit.NANOSECONDS) + "ms.");
+        } else {
+            System.out.println("Skipped: BGW needs NUM_PEERS >= 2*DEGREE+1");
+        }
+
+        System.out.println("Found the summation! Value: " + await(summation));
+    }
+
+    /**
+     * Waits for the result of {@code runSession()} or {@code open()}.
+     *
+     * @throws IOException if the computation failed with one, or was interrupted.
+     */
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
     }
 
     /**
-     * This function accepts a million triples from a trusted dealer (Runner.java) and
-     * picks 2 triples out of them to do the multiplication.
-     * We need to do the multiplication of secrets of containers 1-5. The approach is:
-     * Containers 1 and 2 create shares for their private values and distribute
-     * them. All the containers use beaver triple multiplication to multiply them
-     * and store the answer.
-     * Containers 3 and 4 repeat the process, and multiply their result with the
-     * result acquired in the step above.
-     * Container 5 then multiplies the result acquired above with its own private
-     * value, thus getting the multiplication of all the private shares.
+     * This function takes triples from a trusted dealer (Runner.java), which streams
+     * a million of them, and uses as many of them as needed to multiply the private values of all the
+     * containers:
+     * Every container creates shares of its private value and distributes them.
+     * All the containers then multiply the shares together with {@code product()},
+     * which pairs them up as a balanced binary tree, so the 5 values are multiplied
+     * in ceil(log2 5)=3 rounds of beaver triple multiplication instead of 4.
+     * The product is reconstructed at the end, so no container ever learns another
+     * container's private value.
      *
      * @param privateValue the private value for this class.
      * @throws IOException on socket.send()
      */
     private void demonstrateBeaverTriplesNaive(int privateValue) throws IOException {
-        BigInteger finalResult;
-        Utils.OneMillionBeaverTriples millionTriples = null;
-        BigInteger[] zi = new BigInteger[2];
-
-        for (int i = 1; i <= Utils.NUM_PEERS - 1; i += 2) {
-            if (id == i || id == i + 1) {
-                Polynomial polynomial =
-                        new Polynomial(new BigInteger(String.valueOf(privateValue)));
-                HashMap<Integer, Integer> idToXMap = Utils.getIDToXWithoutRandomization();
-                BigInteger[] f = Utils.getF(polynomial, idToXMap);
-                try {
-                    Thread.sleep(id * 100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                Utils.distributeShares(f, idToXMap, Utils.NUM_PEERS, Utils.SERVICE_NAME_PEER, PORT);
-            }
-            Utils.ShareWrapper[] shareWrappers = acceptSharesFromNPeers(2);
-
-            BigInteger x_i = shareWrappers[0].share;
-            BigInteger y_i = shareWrappers[1].share;
+        nextRound();
+        Polynomial polynomial = new Polynomial(privateValue);
+        HashMap<Integer, Integer> idToXMap = Utils.getIDToXWithoutRandomization();
+        long[] f = Utils.getF(polynomial, idToXMap);
+        distributeShares(f, idToXMap);
+        Utils.ShareWrapper[] shareWrappers = acceptSharesFromNPeers(Utils.NUM_PEERS);
 
-            if (i == 1) {
-                //accept million triples only once.
-                sendContinueToRunner();
-                ServerSocket serverSocket = new ServerSocket(TCP_PORT);
-                millionTriples = acceptMillionTriples(serverSocket);
-                serverSocket.close();
-            }
+        sendContinueToRunner();
+        TriplePool triples = new TriplePool(acceptTriplesFromDealer(Utils.NUM_PEERS - 1));
 
-            zi[(i - 1) / 2] = MPCMultiply(x_i, y_i, millionTriples, i);
+        long[] shares = new long[shareWrappers.length];
+        for (int i = 0; i < shares.length; i++) {
+            shares[i] = shareWrappers[i].share;
         }
-        BigInteger z_3i = MPCMultiply(zi[0], zi[1], millionTriples, 3);
+        long z_i = product(shares, new BeaverMultiplier(triples));
 
-        timeout();
-        BigInteger z3 = reconstructSecret(new Utils.ShareWrapper(z_3i, id, id));
+        long finalResult = reconstructSecret(new Utils.ShareWrapper(z_i, id, id));
+        System.out.println("Final result: " + finalResult);
+    }
 
-        if (id == 5) {
-            finalResult =
-                    z3.multiply(new BigInteger(String.valueOf(privateValue)));
-            System.out.println("Final result (including peer 5's secret): " + finalResult);
+    /**
+     * Multiplies shared values as a balanced binary tree: in every round, neighbouring
+     * values are multiplied pairwise with a single {@code multiplier}, and an odd
+     * value out is carried to the next round. n values therefore take ceil(log2 n)
+     * rounds instead of the n-1 rounds of multiplying them one after the other.
+     *
+     * @param shares     this peer's shares of the values to multiply.
+     * @param multiplier does the {@code shares.length-1} multiplications.
+     * @return this peer's share of the product.
+     * @throws IOException thrown by {@code multiplier}
+     */
+    long product(long[] shares, Multiplier multiplier) throws IOException {
+        if (shares.length == 0) {
+            throw new IllegalArgumentException("Nothing to multiply");
         }
+        long[] level = shares.clone();
+        for (int length = level.length; length > 1; length = (length + 1) / 2) {
+            int pairs = length / 2;
+            long[] left = new long[pairs];
+            long[] right = new long[pairs];
+            for (int k = 0; k < pairs; k++) {
+                left[k] = level[2 * k];
+                right[k] = level[2 * k + 1];
+            }
+            long[] products = multiplier.multiply(this, left, right);
+            System.arraycopy(products, 0, level, 0, pairs);
+            if (length % 2 == 1) {
+                level[pairs] = level[length - 1];
+            }
+        }
+        return level[0];
     }
 
     /**
-     * Calculates z_i such that z_i=c_i+xPrime*b_i+yPrime*a_i+xPrime*yPrime (see the
-     * function for the meaning of these values
-     * @param x_i value of share x_i
-     * @param y_i value of share y_i
-     * @param millionTriples 1 million Beaver Triples
-     * @param i indicates which triple to choose from
-     * @return z_i
-     * @throws IOException thrown by {@code reconstructSecret()}
+     * Adds shared values. Additions are local, so no round is needed; the values are
+     * added pairwise as a balanced binary tree, in the same order as
+     * {@code product()} and {@code Circuit.sum()}.
+     *
+     * @param shares this peer's shares of the values to add.
+     * @return this peer's share of the sum.
      */
-    private BigInteger MPCMultiply(BigInteger x_i, BigInteger y_i,
-                                   Utils.OneMillionBeaverTriples millionTriples, int i) throws IOException {
-        BigInteger a_i = millionTriples.a[i];
-        BigInteger b_i = millionTriples.b[i];
-        BigInteger c_i = millionTriples.c[i];
-
-        BigInteger differenceXA = x_i.subtract(a_i);
-        BigInteger differenceYB = y_i.subtract(b_i);
-
-        timeout();
-        BigInteger xPrime = reconstructSecret(new Utils.ShareWrapper(differenceXA,
-                id, id));
-        System.out.println("xPrime: " + xPrime);
-
-        timeout();
-        BigInteger yPrime = reconstructSecret(new Utils.ShareWrapper(differenceYB,
-                id, id));
-        System.out.println("yPrime: " + yPrime);
+    static long sum(long[] shares) {
+        Field field = Utils.FIELD;
+        if (shares.length == 0) {
+            return 0;
+        }
+        long[] level = shares.clone();
+        for (int length = level.length; length > 1; length = (length + 1) / 2) {
+            for (int k = 0; k < length / 2; k++) {
+                level[k] = field.add(level[2 * k], level[2 * k + 1]);
+            }
+            if (length % 2 == 1) {
+                level[length / 2] = level[length - 1];
+            }
+        }
+        return level[0];
+    }
 
-        BigInteger xPrimeBi = xPrime.multiply(b_i);
-        BigInteger yPrimeAi = yPrime.multiply(a_i);
-        BigInteger xPrimeYPrime = xPrime.multiply(yPrime);
-        return c_i.add(xPrimeBi).add(yPrimeAi).add(xPrimeYPrime);
+    /**
+     * The local part of a Beaver multiplication. Given a triple (a_i, b_i, c_i) and the
+     * opened values xPrime=x-a and yPrime=y-b, returns
+     * z_i=c_i+xPrime*b_i+yPrime*a_i+xPrime*yPrime.
+     */
+    static long beaverCombine(long c_i, long a_i, long b_i, long xPrime,
+                              long yPrime) {
+        Field field = Utils.FIELD;
+        long xPrimeBi = field.multiply(xPrime, b_i);
+        long yPrimeAi = field.multiply(yPrime, a_i);
+        long xPrimeYPrime = field.multiply(xPrime, yPrime);
+        return field.add(field.add(c_i, xPrimeBi), field.add(yPrimeAi, xPrimeYPrime));
     }
 
     /**
      * Slightly improves upon {@code demonstrateBeaverTriplesNaive()} by only getting
-     * triples from the dealer as necessary (who uses PRNG to randomize the triples
-     * every time). Also, this function gets the shares of the private values of all
-     * the containers at once, and then multiplies them together, resulting in a faster
-     * overall execution.
+     * as many triples from the dealer as necessary (who uses PRNG to randomize the
+     * triples every time). The multiplication of the private values of all the
+     * containers is written as a {@code Circuit}, ((x1*x2)*(x3*x4))*x5, and
+     * evaluated with {@code evaluateCircuit()}: x1*x2 and x3*x4 have the same depth,
+     * so they are opened together in a single round.
      *
      * @param privateValue the private value for this class.
      * @throws IOException on socket.send()
      */
     private void demonstrateBeaverTriplesFast(int privateValue) throws IOException {
-        if (id != 5) {
-            Polynomial polynomial =
-                    new Polynomial(new BigInteger(String.valueOf(privateValue)));
-            HashMap<Integer, Integer> idToXMap = Utils.getIDToXWithoutRandomization();
-            BigInteger[] f = Utils.getF(polynomial, idToXMap);
-            try {
-                Thread.sleep(id * 100);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            Utils.distributeShares(f, idToXMap, Utils.NUM_PEERS, Utils.SERVICE_NAME_PEER, PORT);
-        }
-        Utils.ShareWrapper[] shareWrappers = acceptSharesFromNPeers(4);
-
-        BigInteger x_1_i = shareWrappers[0].share;
-        BigInteger y_1_i = shareWrappers[1].share;
-        BigInteger x_2_i = shareWrappers[2].share;
-        BigInteger y_2_i = shareWrappers[3].share;
-
-        sendContinueToRunner();
-
-        //There aren't three peers, this is the runner sending 3 separate values.
-        shareWrappers = acceptSharesFromNPeers(3);
-        BigInteger a_1_i = shareWrappers[0].share;
-        BigInteger b_1_i = shareWrappers[1].share;
-        BigInteger c_1_i = shareWrappers[2].share;
+        Circuit circuit = circuitForFastDemo();
 
         sendContinueToRunner();
+        //The runner sends the shares of all the a's, b's and c's in 3 rounds.
+        long[] a = acceptShareBatchFromRunner();
+        long[] b = acceptShareBatchFromRunner();
+        long[] c = acceptShareBatchFromRunner();
+        TriplePool triples = new TriplePool(new Utils.OneMillionBeaverTriples(a, b, c));
 
-        shareWrappers = acceptSharesFromNPeers(3);
-        BigInteger a_2_i = shareWrappers[0].share;
-        BigInteger b_2_i = shareWrappers[1].share;
-        BigInteger c_2_i = shareWrappers[2].share;
+        long[] result = evaluateCircuit(circuit, new long[]{privateValue},
+                new BeaverMultiplier(triples));
+        System.out.println("Final result: " + result[0]);
+    }
 
-        BigInteger differenceXA_1 = x_1_i.subtract(a_1_i);
-        BigInteger differenceYB_1 = y_1_i.subtract(b_1_i);
-        BigInteger differenceXA_2 = x_2_i.subtract(a_2_i);
-        BigInteger differenceYB_2 = y_2_i.subtract(b_2_i);
+    /**
+     * Evaluates the same circuit as {@code demonstrateBeaverTriplesFast()}, with
+     * {@code BgwMultiplier} instead of triples, so the Runner isn't needed.
+     *
+     * @param privateValue the private value for this class.
+     * @throws IOException on socket.send()
+     */
+    private void demonstrateBgw(int privateValue) throws IOException {
+        long[] result = evaluateCircuit(circuitForFastDemo(), new long[]{privateValue},
+                new BgwMultiplier());
+        System.out.println("Final result: " + result[0]);
+    }
 
-        timeout();
-        BigInteger xPrime1 = reconstructSecret(new Utils.ShareWrapper(differenceXA_1,
-                id, id));
-        System.out.println("xPrime1: " + xPrime1);
+    /**
+     * @return the circuit evaluated by {@code demonstrateBeaverTriplesFast()}. The
+     * Runner uses it to find out how many triples are needed.
+     */
+    static Circuit circuitForFastDemo() {
+        Circuit circuit = new Circuit();
+        int[] inputs = new int[Utils.NUM_PEERS];
+        for (int i = 1; i <= Utils.NUM_PEERS; i++) {
+            inputs[i - 1] = circuit.input(i);
+        }
+        int product = circuit.product(inputs);
+        circuit.output(product);
+        return circuit;
+    }
 
-        timeout();
-        BigInteger yPrime1 = reconstructSecret(new Utils.ShareWrapper(differenceYB_1,
-                id, id));
-        System.out.println("yPrime1: " + yPrime1);
+    /**
+     * Evaluates an arithmetic circuit on the private values of the peers.
+     * - In the first round, every peer shares all of its inputs.
+     * - Additions and multiplications by constants are done locally.
+     * - All the multiplications of the same depth are done together with
+     * {@code multiplier}, so the number of rounds for the multiplications is the
+     * depth of the circuit and not the number of multiplications.
+     * - In the last round, all the outputs are opened together with
+     * {@code openAll()}.
+     *
+     * @param circuit       the circuit to evaluate.
+     * @param privateInputs the values of the inputs of this peer, in the order they
+     *                      were added to the circuit.
+     * @param multiplier    does the {@code circuit.numMultiplications()}
+     *                      multiplications.
+     * @return the values of the outputs, in the order they were added.
+     * @throws IOException on socket.send()
+     */
+    long[] evaluateCircuit(Circuit circuit, long[] privateInputs,
+                           Multiplier multiplier) throws IOException {
+        long[] wires = new long[circuit.gates.size()];
+        boolean[] evaluated = new boolean[wires.length];
 
-        timeout();
-        BigInteger xPrime2 = reconstructSecret(new Utils.ShareWrapper(differenceXA_2,
-                id, id));
-        System.out.println("xPrime2: " + xPrime2);
+        shareInputs(circuit, privateInputs, wires, evaluated);
 
-        timeout();
-        BigInteger yPrime2 = reconstructSecret(new Utils.ShareWrapper(differenceYB_2,
-                id, id));
-        System.out.println("yPrime2: " + yPrime2);
+        int[][] layers = circuit.multiplicationLayers();
+        for (int depth = 1; depth <= layers.length; depth++) {
+            evaluateLocalGates(circuit, wires, evaluated, depth);
+            int[] layer = layers[depth - 1];
+            long[] left = new long[layer.length];
+            long[] right = new long[layer.length];
+            for (int k = 0; k < layer.length; k++) {
+                Circuit.Gate gate = circuit.gates.get(layer[k]);
+                left[k] = wires[gate.left];
+                right[k] = wires[gate.right];
+            }
+            long[] products = multiplier.multiply(this, left, right);
+            for (int k = 0; k < layer.length; k++) {
+                wires[layer[k]] = products[k];
+                evaluated[layer[k]] = true;
+            }
+        }
+        evaluateLocalGates(circuit, wires, evaluated, Integer.MAX_VALUE);
 
+        ArrayList<Long> outputs = new ArrayList<>(circuit.outputs.size());
+        for (int wire : circuit.outputs) {
+            outputs.add(wires[wire]);
+        }
+        List<Long> secrets = await(openAll(outputs));
+        long[] result = new long[secrets.size()];
+        for (int k = 0; k < result.length; k++) {
+            result[k] = secrets.get(k);
+        }
+        return result;
+    }
 
-        BigInteger xPrimeBi1 = xPrime1.multiply(b_1_i);
-        BigInteger yPrimeAi1 = yPrime1.multiply(a_1_i);
-        BigInteger xPrimeYPrime1 = xPrime1.multiply(yPrime1);
-        BigInteger z_i_1 = c_1_i.add(xPrimeBi1).add(yPrimeAi1).add(xPrimeYPrime1);
+    /**
+     * Utility method for {@code evaluateCircuit()}. Every peer that owns inputs
+     * sends each peer a single message with the shares of all of its inputs, and
+     * every peer stores the shares it receives in {@code wires}.
+     */
+    private void shareInputs(Circuit circuit, long[] privateInputs, long[] wires,
+                             boolean[] evaluated) throws IOException {
+        nextRound();
+        int[] myInputs = circuit.inputsOf(id);
+        if (myInputs.length > 0) {
+            Polynomial[] polynomials = new Polynomial[myInputs.length];
+            for (int k = 0; k < myInputs.length; k++) {
+                polynomials[k] = new Polynomial(Utils.FIELD.reduce(privateInputs[k]));
+            }
+            HashMap<Integer, Integer> idToXMap = Utils.getIDToXWithoutRandomization();
+            long[][] f = new long[Utils.NUM_PEERS + 1][myInputs.length];
+            int[] x = new int[Utils.NUM_PEERS];
+            for (int i = 1; i <= Utils.NUM_PEERS; i++) {
+                x[i - 1] = idToXMap.get(i);
+            }
+            Polynomial.f(polynomials, x, Arrays.copyOfRange(f, 1, Utils.NUM_PEERS + 1));
+            Utils.distributeShareBatches(f, idToXMap, Utils.NUM_PEERS, transport, session,
+                    round, id);
+        }
+        int[] owners = circuit.owners();
+        Utils.ShareWrapper[] shareWrappers = acceptSharesFromNPeers(owners.length);
+        for (Utils.ShareWrapper shareWrapper : shareWrappers) {
+            int[] inputs = circuit.inputsOf(shareWrapper.sender);
+            long[] values = shareWrapper.values();
+            for (int k = 0; k < inputs.length; k++) {
+                wires[inputs[k]] = values[k];
+                evaluated[inputs[k]] = true;
+            }
+        }
+    }
 
-        BigInteger xPrimeBi2 = xPrime2.multiply(b_2_i);
-        BigInteger yPrimeAi2 = yPrime2.multiply(a_2_i);
-        BigInteger xPrimeYPrime2 = xPrime2.multiply(yPrime2);
-        BigInteger z_i_2 = c_2_i.add(xPrimeBi2).add(yPrimeAi2).add(xPrimeYPrime2);
+    /**
+     * Utility method for {@code evaluateCircuit()}. Evaluates, in order, every
+     * addition and multiplication by a constant whose depth is less than
+     * {@code maxDepth} and that hasn't been evaluated yet. All the multiplications
+     * such a gate depends on have a smaller depth, so they are already done.
+     */
+    private static void evaluateLocalGates(Circuit circuit, long[] wires,
+                                           boolean[] evaluated, int maxDepth) {
+        Field field = Utils.FIELD;
+        for (int wire = 0; wire < wires.length; wire++) {
+            Circuit.Gate gate = circuit.gates.get(wire);
+            if (evaluated[wire] || gate.depth >= maxDepth) {
+                continue;
+            }
+            if (gate.type == Circuit.Type.ADD) {
+                wires[wire] = field.add(wires[gate.left], wires[gate.right]);
+            } else if (gate.type == Circuit.Type.MULTIPLY_BY_CONSTANT) {
+                wires[wire] = field.multiply(wires[gate.left], gate.constant);
+            } else {
+                continue;
+            }
+            evaluated[wire] = true;
+        }
+    }
 
-        timeout();
-        BigInteger result1 = reconstructSecret(new Utils.ShareWrapper(z_i_1, id, id));
-        System.out.println("Sub multiplication1: " + result1);
+    /**
+     * Multiplies many pairs of shared values at once with Beaver triples. The
+     * differences x[k]-a[k] and y[k]-b[k] of all the pairs are opened together in a
+     * single round, after which every product is calculated locally.
+     *
+     * @param x    shares of the left operands.
+     * @param y    shares of the right operands.
+     * @param pool this peer's Beaver triples. Every pair claims one of them.
+     * @return shares of x[k]*y[k].
+     * @throws IOException thrown by {@code reconstructSecrets()}
+     */
+    long[] multiplyBatch(long[] x, long[] y, TriplePool pool) throws IOException {
+        Field field = Utils.FIELD;
+        int n = x.length;
+        Utils.OneMillionBeaverTriples triples = pool.triples;
+        int firstTriple = pool.claim(session, n);
+        long[] differences = new long[2 * n];
+        for (int k = 0; k < n; k++) {
+            differences[k] = field.subtract(x[k], triples.a[firstTriple + k]);
+            differences[n + k] = field.subtract(y[k], triples.b[firstTriple + k]);
+        }
+        long[] opened = reconstructSecrets(differences);
+        long[] z = new long[n];
+        for (int k = 0; k < n; k++) {
+            int t = firstTriple + k;
+            z[k] = beaverCombine(triples.c[t], triples.a[t], triples.b[t], opened[k],
+                    opened[n + k]);
+        }
+        return z;
+    }
 
-        timeout();
-        BigInteger result2 = reconstructSecret(new Utils.ShareWrapper(z_i_2, id, id));
-        System.out.println("Sub multiplication2: " + result2);
+    /**
+     * Multiplies many pairs of shared values at once without triples, with the
+     * degree reduction of BGW:
+     * - Every peer multiplies its shares locally. x[k]*y[k] is then a share of the
+     * product, but of a polynomial of degree 2t.
+     * - The product is the value at 0 of the polynomial of degree 2t, which is a
+     * linear combination of its values at 2t+1 x, with their Lagrange co-efficients.
+     * Peers 1 to 2t+1 share all of their local products again with random
+     * polynomials of degree t, and send every peer its shares of them in a single
+     * message.
+     * - Every peer applies the linear combination to the shares it got, which gives it
+     * a share of degree t of the product. All the peers must combine the shares of
+     * the same 2t+1 peers: with other peers, the combination has the same value at 0,
+     * but is another polynomial. That is why the peers that reshare are fixed,
+     * instead of taking the first 2t+1 that arrive.
+     * This takes a single round, like {@code multiplyBatch()}, and nothing from a
+     * dealer, but needs N >= 2t+1: with fewer peers, the polynomials of degree 2t
+     * can't be interpolated.
+     *
+     * @param x shares of the left operands.
+     * @param y shares of the right operands.
+     * @return shares of x[k]*y[k].
+     * @throws UnsupportedPolynomialException if N < 2t+1.
+     * @throws IOException                    on socket.send().
+     */
+    long[] multiplyBgw(long[] x, long[] y) throws IOException {
+        int productDegree = 2 * Utils.DEGREE;
+        if (Utils.NUM_PEERS < productDegree + 1) {
+            throw new UnsupportedPolynomialException(productDegree, Utils.NUM_PEERS);
+        }
+        Field field = Utils.FIELD;
+        long[] products = new long[x.length];
+        for (int k = 0; k < products.length; k++) {
+            products[k] = field.multiply(x[k], y[k]);
+        }
+        return await(inChunks(products, this::reshare));
+    }
 
+    /**
+     * The round of {@code multiplyBgw()}: shares the local products of degree 2t
+     * again, and combines the shares from the other peers into shares of degree t.
+     */
+    private CompletableFuture<long[]> reshare(long[] products) throws IOException {
+        int productDegree = 2 * Utils.DEGREE;
+        nextRound();
+        if (id <= productDegree + 1) {
+            long[][] shares = ParallelDealer.share(products);
+            for (int i = 1; i <= Utils.NUM_PEERS; i++) {
+                sendValue(i, new Utils.ShareWrapper(shares[i], i, id));
+            }
+        }
+        return decode(productDegree, (x, y) -> Polynomial.calculateSecrets(x, y,
+                productDegree), productDegree + 1);
+    }
 
-        if (id == 5) {
-            BigInteger finalResult = result1.multiply(result2);
-            finalResult = finalResult.multiply(new BigInteger(String.valueOf(privateValue)));
-            System.out.println("Final result (including peer 5's secret): " + finalResult);
+    /**
+     * The packed version of {@code multiplyBatch()}: x[m], y[m] and the triples are
+     * packed shares (see {@code PackedSharing}) of vectors of k values, which are
+     * multiplied element by element. All the differences are opened together in a
+     * single round.
+     * The products have degree {@code packing.productDegree()}: they can be added and
+     * opened with {@code reconstructPackedSecrets()}, but not multiplied again.
+     *
+     * @param x       packed shares of the left operands.
+     * @param y       packed shares of the right operands.
+     * @param pool    this peer's packed Beaver triples, of the same packing. Every
+     *                pair claims one of them.
+     * @param packing the packing of the shares.
+     * @return packed shares of x[m]*y[m].
+     * @throws UnsupportedPolynomialException if there are not enough peers to open the
+     *                                        products.
+     * @throws IOException                    thrown by
+     *                                        {@code reconstructPackedSecrets()}
+     */
+    long[] multiplyPacked(long[] x, long[] y, TriplePool pool, PackedSharing packing)
+            throws IOException {
+        if (Utils.NUM_PEERS < packing.productDegree() + 1) {
+            throw new UnsupportedPolynomialException(packing.productDegree(),
+                    Utils.NUM_PEERS);
         }
+        Field field = Utils.FIELD;
+        int n = x.length;
+        Utils.OneMillionBeaverTriples triples = pool.triples;
+        int firstTriple = pool.claim(session, n);
+        long[] differences = new long[2 * n];
+        for (int m = 0; m < n; m++) {
+            differences[m] = field.subtract(x[m], triples.a[firstTriple + m]);
+            differences[n + m] = field.subtract(y[m], triples.b[firstTriple + m]);
+        }
+        long[] opened = reconstructPackedSecrets(differences, packing, packing.degree());
+        int k = packing.k;
+        long[] z = new long[n];
+        for (int m = 0; m < n; m++) {
+            int t = firstTriple + m;
+            long[] xPrime = Arrays.copyOfRange(opened, m * k, (m + 1) * k);
+            long[] yPrime = Arrays.copyOfRange(opened, (n + m) * k, (n + m + 1) * k);
+            z[m] = packing.beaverCombine(triples.c[t], triples.a[t], triples.b[t], xPrime,
+                    yPrime, id);
+        }
+        return z;
+    }
+
+    /**
+     * Multiplies two shared matrices with a Beaver matrix triple (A, B, C=A*B). The
+     * differences E=X-A and F=Y-B are opened together in a single round, after which
+     * X*Y = (E+A)(F+B) = C + E*(B+F) + A*F is calculated locally: E and F are public,
+     * so the products are of a public and a shared matrix, which keep the degree of
+     * the shares.
+     *
+     * @param x      shares of the left matrix, n x k.
+     * @param y      shares of the right matrix, k x m.
+     * @param triple this peer's shares of a matrix triple of the same sizes, which
+     *               is used up.
+     * @return shares of X*Y, n x m.
+     * @throws IOException thrown by {@code reconstructSecrets()}
+     */
+    Matrix multiplyMatrices(Matrix x, Matrix y, MatrixTriple triple) throws IOException {
+        triple.claim(x, y);
+        Matrix e = x.subtract(triple.a);
+        Matrix f = y.subtract(triple.b);
+        long[] differences = Arrays.copyOf(e.values, e.values.length + f.values.length);
+        System.arraycopy(f.values, 0, differences, e.values.length, f.values.length);
+        long[] opened = reconstructSecrets(differences);
+        e = new Matrix(e.rows, e.cols, Arrays.copyOf(opened, e.values.length));
+        f = new Matrix(f.rows, f.cols, Arrays.copyOfRange(opened, e.values.length,
+                opened.length));
+        return triple.c.add(e.multiply(triple.b.add(f))).add(triple.a.multiply(f));
     }
 
     /**
      * Accepts shares of private values from all containers and adds them together. The
-     * function then calls {@code reconstructSecret()} to calculate the secret for the
+     * function then opens the sum with {@code open()} to calculate the secret for the
      * new polynomial, which results in adding up all the shares.
      *
      * @param privateValue the private value for this class.
      * @return the summation of all the private values.
      * @throws IOException on socket.send().
      */
-    private BigInteger demonstrateSecretShareSummation(int privateValue) throws IOException {
-        Polynomial polynomial =
-                new Polynomial(new BigInteger(String.valueOf(privateValue)));
+    private long demonstrateSecretShareSummation(int privateValue) throws IOException {
+        Polynomial polynomial = new Polynomial(privateValue);
         System.out.println(polynomial);
         HashMap<Integer, Integer> idToXMap = Utils.getIDToXWithoutRandomization();
-        BigInteger[] f = Utils.getF(polynomial, idToXMap);
-        Utils.distributeShares(f, idToXMap, Utils.NUM_PEERS, Utils.SERVICE_NAME_PEER, PORT);
-        Utils.ShareWrapper[] shareWrappers = acceptSharesFromNPeers(5);
-        Utils.ShareWrapper sharesSummation = addReceivedShares(shareWrappers);
-        timeout();
-        return reconstructSecret(sharesSummation);
+        long[] f = Utils.getF(polynomial, idToXMap);
+        nextRound();
+        distributeShares(f, idToXMap);
+        Utils.ShareWrapper[] shareWrappers = acceptSharesFromNPeers(Utils.NUM_PEERS);
+        return await(open(collectReceivedShares(shareWrappers).sum()));
     }
 
     /**
-     * Utility method for {@code demonstrateSecretShareSummation()}. This function adds
-     * all the shares and returns the result.
+     * Utility method for {@code demonstrateSecretShareSummation()}. This function puts
+     * all the shares in a vector, whose {@code sum()} is a share of the summation.
      *
      * @param shareWrappers a list of shares whose value is to be added.
-     * @return a {@code ShareWrapper} object whose share is the summation of all the
-     * shares inside {@code shareWrappers}.
+     * @return a {@code SharedVector} of the shares inside {@code shareWrappers}.
      */
-    private Utils.ShareWrapper addReceivedShares(Utils.ShareWrapper[] shareWrappers) {
-        BigInteger result = new BigInteger("0");
-        for (Utils.ShareWrapper shareWrapper : shareWrappers) {
-            result = result.add(shareWrapper.share);
+    private SharedVector collectReceivedShares(Utils.ShareWrapper[] shareWrappers) {
+        long[] shares = new long[shareWrappers.length];
+        for (int i = 0; i < shares.length; i++) {
+            shares[i] = shareWrappers[i].share;
         }
-        return new Utils.ShareWrapper(result, id, id);
+        return new SharedVector(shares);
     }
 
     /**
@@ -311,11 +720,11 @@ public class Peer {
      *
      * @return A {@code ShareWrapper} object that contains the id of the peer and the
      * share for testing reconstruction of the secret.
-     * @throws IOException see {@code acceptMessage()}.
+     * @throws IOException see {@code Inbox.take()}.
      */
     private Utils.ShareWrapper init() throws IOException {
-        String message = acceptMessage();
-        Utils.ShareWrapper shareWrapper = new Utils.ShareWrapper(message);
+        nextRound();
+        Utils.ShareWrapper shareWrapper = acceptSharesFromNPeers(1)[0];
         id = shareWrapper.id;
         System.out.println("I received secretShare " + shareWrapper.share + ", my id is" +
                 " " + shareWrapper.id + " and my x is " + shareWrapper.x);
@@ -325,133 +734,456 @@ public class Peer {
     /**
      * Given n equations and n variables, we can find any co-efficients of a polynomial
      * f. Since the secret is encoded at f(0), we are only interested in that.
-     * This function gathers shares from everyone else (and also broadcasts it's own
-     * shares to everyone else) and reconstructs the secret by calling {@code
-     * Polynomial.calculateSecret()}.
+     * This function opens the share of this peer with {@code open()}, which gathers
+     * the shares of everyone and reconstructs the secret by calling {@code
+     * Polynomial.calculateSecrets()}.
      *
-     * @param shareWrapper The share of this peer. Mainly used for broadcasting it to
+     * @param shareWrapper The share of this peer. Mainly used for sending it to
      *                     everyone else.
      * @return the calculated secret, ie. f(0).
      * @throws IOException on socket.send().
      */
-    private BigInteger reconstructSecret(Utils.ShareWrapper shareWrapper) throws IOException {
-        broadcastValue(shareWrapper);
-        Utils.ShareWrapper[] shareWrappers = acceptSharesFromNPeers(Utils.NUM_PEERS);
-        BigInteger[] y = new BigInteger[shareWrappers.length];
-        int[] x = new int[shareWrappers.length];
-        for (int i = 0; i < shareWrappers.length; i++) {
-            x[i] = shareWrappers[i].x;
-            y[i] = shareWrappers[i].share;
+    private long reconstructSecret(Utils.ShareWrapper shareWrapper) throws IOException {
+        return await(open(shareWrapper, Utils.DEGREE,
+                (x, y) -> Polynomial.calculateSecrets(x, y, Utils.DEGREE)))[0];
+    }
+
+    /**
+     * Same as {@code reconstructSecret()}, but for many secrets at once: this peer
+     * sends all its shares in a single message (or as few as they fit in, see
+     * {@code openBatch()}), and all the secrets are reconstructed together.
+     *
+     * @param shares the shares of this peer.
+     * @return the secrets, such that result[k] is the secret that shares[k] is a
+     * share of.
+     * @throws IOException on socket.send().
+     */
+    long[] reconstructSecrets(long[] shares) throws IOException {
+        return await(openBatch(shares));
+    }
+
+    /**
+     * Same as {@code reconstructSecrets()}, but for packed shares: every share holds
+     * {@code packing.k} secrets.
+     *
+     * @param shares  the packed shares of this peer.
+     * @param packing the packing of the shares.
+     * @param degree  the degree of the sharings, see {@code PackedSharing.reconstruct()}.
+     * @return the secrets, such that result[m*k+j] is the j-th secret of shares[m].
+     * @throws IOException on socket.send().
+     */
+    long[] reconstructPackedSecrets(long[] shares, PackedSharing packing,
+                                    int degree) throws IOException {
+        return await(open(new Utils.ShareWrapper(shares, id, id), degree,
+                (x, y) -> packing.reconstruct(x, y, degree)));
+    }
+
+    /**
+     * Opens a shared value without waiting for it: this peer's share is sent right
+     * away, and the future completes once the secret is reconstructed. Independent
+     * values can so be opened one after the other, and the arithmetic that follows
+     * each of them chained to its future, while all the openings are under way at
+     * the same time.
+     * Every opening takes the next round(s) of the session when it is called, so
+     * every peer must call {@code open()} and {@code openAll()}, like everything else
+     * in a session, in the same order and from the thread of the session. The
+     * futures complete on other threads.
+     *
+     * @param share the share of this peer.
+     * @return the secret. Fails with an {@code IOException} if the session is closed
+     * before the secret could be reconstructed.
+     * @throws IOException on socket.send().
+     */
+    CompletableFuture<Long> open(long share) throws IOException {
+        return open(new Utils.ShareWrapper(new long[]{share}, id, id), Utils.DEGREE,
+                (x, y) -> Polynomial.calculateSecrets(x, y, Utils.DEGREE))
+                .thenApply(secrets -> secrets[0]);
+    }
+
+    /**
+     * Same as {@code open(share)}, but for many values at once, like
+     * {@code reconstructSecrets()}.
+     *
+     * @param shares the shares of this peer.
+     * @return the secrets, in the order of {@code shares}.
+     * @throws IOException on socket.send().
+     */
+    CompletableFuture<List<Long>> openAll(List<Long> shares) throws IOException {
+        long[] values = new long[shares.size()];
+        for (int k = 0; k < values.length; k++) {
+            values[k] = shares.get(k);
+        }
+        return openBatch(values).thenApply(secrets -> {
+            ArrayList<Long> list = new ArrayList<>(secrets.length);
+            for (long secret : secrets) {
+                list.add(secret);
+            }
+            return list;
+        });
+    }
+
+    /**
+     * Opens the secrets of a batch of shares of any length. A batch is sent in a
+     * single message if it fits in one (see {@code MAX_SHARES_PER_MESSAGE}).
+     * Otherwise it is split into chunks that do, and every chunk is opened in a round
+     * of its own, but without waiting for the others, so all of them are under way
+     * at the same time and the whole batch still takes about one round trip.
+     *
+     * @return the secrets, such that result[k] is the secret that shares[k] is a
+     * share of.
+     * @throws IOException on socket.send().
+     */
+    private CompletableFuture<long[]> openBatch(long[] shares) throws IOException {
+        Decoder decoder = (x, y) -> Polynomial.calculateSecrets(x, y, Utils.DEGREE);
+        return inChunks(shares, chunk -> open(new Utils.ShareWrapper(chunk, id, id),
+                Utils.DEGREE, decoder));
+    }
+
+    /**
+     * A step of a protocol that takes a round, and sends this peer's values to every
+     * peer in a single message.
+     */
+    private interface Step {
+        CompletableFuture<long[]> run(long[] values) throws IOException;
+    }
+
+    /**
+     * Runs {@code step} on {@code values}, or, if they don't fit in a single message
+     * (see {@code MAX_SHARES_PER_MESSAGE}), on chunks of them that do, in a round
+     * each. The chunks don't wait for each other, so all of them are under way at
+     * the same time. Without any values, nothing is sent and no round is taken.
+     *
+     * @return the results of {@code step} for all the chunks, one after the other.
+     * @throws IOException thrown by {@code step}.
+     */
+    private CompletableFuture<long[]> inChunks(long[] values, Step step) throws IOException {
+        if (values.length == 0) {
+            return CompletableFuture.completedFuture(new long[0]);
+        }
+        if (values.length <= MAX_SHARES_PER_MESSAGE) {
+            return step.run(values);
+        }
+        long[] results = new long[values.length];
+        ArrayList<CompletableFuture<Void>> chunks = new ArrayList<>();
+        for (int from = 0; from < values.length; from += MAX_SHARES_PER_MESSAGE) {
+            int offset = from;
+            long[] chunk = Arrays.copyOfRange(values, from,
+                    Math.min(from + MAX_SHARES_PER_MESSAGE, values.length));
+            chunks.add(step.run(chunk).thenAccept(result -> System.arraycopy(result, 0,
+                    results, offset, result.length)));
+        }
+        return CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> results);
+    }
+
+    /**
+     * Finds the secrets of the shares of several peers: y[i][m] is the m-th share of
+     * the peer at x[i].
+     */
+    private interface Decoder {
+        long[] decode(int[] x, long[][] y);
+    }
+
+    /**
+     * Reconstructs the secrets of all the shares in {@code shareWrapper}, the way
+     * {@code Utils.RECONSTRUCTION} says:
+     * - BROADCAST: this peer broadcasts its shares, and reconstructs the secrets from
+     * the shares of the other peers.
+     * - KING: this peer sends its shares to the king of the round only. The king
+     * reconstructs the secrets and broadcasts them in the next round. The king of
+     * round r is peer ((r-1) mod N)+1, which every peer can work out on its own.
+     * Only {@code degree + 1} shares are needed, so the secrets are reconstructed
+     * from the first {@code degree + 1} shares that arrive instead of waiting for the
+     * slowest peer. The shares that arrive later are checked against them in the
+     * background by a {@code LateShareCheck}.
+     * The shares are sent before this returns, and the rounds are taken, but nothing
+     * is waited for: the secrets are reconstructed on {@code Sessions.EXECUTOR} once
+     * the shares are here, and so is the king's broadcast.
+     * An empty batch has no secrets: nothing is sent for it, and no round is taken,
+     * since {@code ShareCodec} can't encode it. Every peer opens batches of the same
+     * length, so they all skip it.
+     *
+     * @param degree the degree of the sharings.
+     * @return the secrets, as found by {@code decoder}.
+     * @throws IOException on socket.send().
+     */
+    private CompletableFuture<long[]> open(Utils.ShareWrapper shareWrapper, int degree,
+                                           Decoder decoder) throws IOException {
+        if (shareWrapper.count() == 0) {
+            return CompletableFuture.completedFuture(new long[0]);
+        }
+        long start = System.nanoTime();
+        nextRound();
+        CompletableFuture<long[]> secrets;
+        if (Utils.RECONSTRUCTION == Utils.Reconstruction.BROADCAST) {
+            broadcastValue(shareWrapper);
+            secrets = decode(degree, decoder, Utils.NUM_PEERS);
+        } else {
+            int king = (round - 1) % Utils.NUM_PEERS + 1;
+            sendValue(king, shareWrapper);
+            int session = this.session;
+            int resultRound = round + 1;
+            CompletableFuture<Void> announced = CompletableFuture.completedFuture(null);
+            if (id == king) {
+                announced = decode(degree, decoder, Utils.NUM_PEERS)
+                        .thenAccept(decoded -> announce(decoded, session, resultRound));
+            }
+            nextRound();
+            Inbox inbox = this.inbox;
+            secrets = announced.thenCompose(ignored -> inbox.takeAsync(resultRound, 1, 1, null))
+                    .thenApply(received -> received.get(0).values());
         }
-        return Polynomial.calculateSecret(x, y, 2);
+        return secrets.whenComplete((values, e) -> Metrics.OPEN.recordSince(start));
+    }
+
+    /**
+     * Broadcasts the secrets that this peer reconstructed as the king, for the given
+     * session and round. Called on {@code Sessions.EXECUTOR}, so it encodes into a buffer of its
+     * own instead of {@code sendBuffer}.
+     */
+    private void announce(long[] secrets, int session, int round) {
+        Utils.ShareWrapper shareWrapper = new Utils.ShareWrapper(secrets, id, 0);
+        try {
+            broadcast(encode(shareWrapper, session, round,
+                    ByteBuffer.allocate(ShareCodec.size(shareWrapper))));
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Takes the first {@code degree + 1} shares of the current round once they are
+     * here, and decodes them on {@code Sessions.EXECUTOR}. The shares are sorted by x
+     * first, so that every reconstruction from the same peers reuses the same cached
+     * Lagrange co-efficients no matter in which order the shares arrived. Any shares
+     * beyond the first {@code degree + 1}, now or later, go to a
+     * {@code LateShareCheck}.
+     *
+     * @param expected the number of shares that are sent in the round.
+     */
+    private CompletableFuture<long[]> decode(int degree, Decoder decoder, int expected) {
+        int numPoints = degree + 1;
+        LateShareCheck lateShareCheck = new LateShareCheck(session, round);
+        long start = System.nanoTime();
+        return inbox.takeAsync(round, numPoints, expected, lateShareCheck)
+                .thenApplyAsync(received -> {
+                    Metrics.SHARE_WAIT.recordSince(start);
+                    Utils.ShareWrapper[] shareWrappers =
+                            received.toArray(new Utils.ShareWrapper[0]);
+                    Arrays.sort(shareWrappers, 0, numPoints,
+                            Comparator.comparingInt(s -> s.x));
+                    long[][] y = new long[numPoints][];
+                    int[] x = new int[numPoints];
+                    for (int i = 0; i < numPoints; i++) {
+                        x[i] = shareWrappers[i].x;
+                        y[i] = shareWrappers[i].values();
+                    }
+                    lateShareCheck.use(x, y);
+                    for (int i = numPoints; i < shareWrappers.length; i++) {
+                        lateShareCheck.acceptOnTime(shareWrappers[i]);
+                    }
+                    long decodeStart = System.nanoTime();
+                    long[] secrets = decoder.decode(x, y);
+                    Metrics.RECONSTRUCT.recordSince(decodeStart);
+                    return secrets;
+                }, Sessions.EXECUTOR);
     }
 
     /**
-     * Accepts one million triples from the Runner.
+     * Takes the next {@code count} triples from the stream of triples from the
+     * Runner, opening the stream the first time. See {@code TripleStream}.
+     * With {@code Utils.DEALER} set to SEEDED, the stream holds a
+     * {@code SeededDealer.Package} instead, which is expanded into all the triples.
+     * With STORE, the triples are taken from this peer's {@code TripleStore} in
+     * {@code Utils.TRIPLE_STORE} instead, and the Runner sends nothing.
+     *
+     * Only the peer itself takes triples, on the thread that runs it, so they are
+     * taken in the same order at every peer. Sessions (see {@code runSession()}) get
+     * pools reserved from them instead.
      *
-     * @param serverSocket a TCP socket used to accept an incoming connection from the
-     *                     Runner. It's the responsibility of the caller of this
-     *                     function to close this socket after use.
-     * @return A new object of {@code OneMillionBeaverTriples}.
-     * @throws IOException on serverSocket.accept().
+     * @return A new object of {@code OneMillionBeaverTriples}, with at least
+     * {@code count} triples.
+     * @throws IOException           on {@code transport.accept()}, or see
+     *                               {@code TripleStore.take()}.
+     * @throws IllegalStateException if this is a session.
      */
-    private Utils.OneMillionBeaverTriples acceptMillionTriples(ServerSocket serverSocket) throws IOException {
-        Socket clientSocket = serverSocket.accept();
-        BufferedReader in =
-                new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-        String triples = in.readLine();
-        return new Utils.OneMillionBeaverTriples(triples);
+    private synchronized Utils.OneMillionBeaverTriples acceptTriplesFromDealer(int count)
+            throws IOException {
+        if (root != this) {
+            throw new IllegalStateException("Session " + session + " can't take triples " +
+                    "from the dealer, reserve() a pool for it instead");
+        }
+        if (Utils.DEALER == Utils.Dealer.STORE) {
+            if (tripleStore == null) {
+                tripleStore = TripleStore.open(Paths.get(Utils.TRIPLE_STORE), id);
+            }
+            return dealt(tripleStore.take(count));
+        }
+        if (Utils.DEALER == Utils.Dealer.SEEDED) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(transport.accept()))) {
+                return dealt(SeededDealer.expand(id, SeededDealer.Package.read(in)));
+            }
+        }
+        if (tripleStream == null) {
+            tripleStream = new TripleStream.Receiver(transport.accept());
+        }
+        return dealt(tripleStream.take(count));
+    }
+
+    private static Utils.OneMillionBeaverTriples dealt(Utils.OneMillionBeaverTriples triples) {
+        Metrics.TRIPLES_DEALT.add(triples.n);
+        return triples;
     }
 
     /**
-     * A for loop in this function accepts shares from {@code n} peers and returns an
-     * array of the received shares.
+     * Waits for shares from {@code n} peers for the current round and returns an
+     * array of the received shares, sorted by the id of the sender.
      *
      * @param n the number of peers to accept shares from.
      * @return an array of the received shares.
-     * @throws IOException see {@code acceptMessage()}.
+     * @throws IOException see {@code Inbox.take()}.
      */
     private Utils.ShareWrapper[] acceptSharesFromNPeers(int n) throws IOException {
-        Utils.ShareWrapper[] shareWrappers = new Utils.ShareWrapper[n];
-        for (int i = 0; i < n; i++) {
-            String message = acceptMessage();
-            shareWrappers[i] = new Utils.ShareWrapper(message);
-        }
+        ArrayList<Utils.ShareWrapper> received = inbox.take(round, n);
+        Utils.ShareWrapper[] shareWrappers = received.toArray(new Utils.ShareWrapper[0]);
+        Arrays.sort(shareWrappers, Comparator.comparingInt(s -> s.sender));
         return shareWrappers;
     }
 
     /**
-     * Given a share, sends it to {@code peerName}.
+     * Moves on to the next round and accepts the share that the Runner sent for it.
      *
-     * @param shareWrapper the share to be sent.
-     * @param peerName     the name of the peer to send it to.
-     * @param socket       used for sending the share.
-     * @param port         the port on which the share is to be sent to.
-     * @throws IOException on socket.send().
+     * @return the share.
+     * @throws IOException see {@code Inbox.take()}.
      */
-    @SuppressWarnings("SameParameterValue")
-    private void sendShareToPeer(Utils.ShareWrapper shareWrapper, String peerName,
-                                 DatagramSocket socket, int port) throws IOException {
-        String message = shareWrapper.toString();
-        byte[] buffer = message.getBytes();
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length,
-                InetAddress.getByName(peerName), port);
-        socket.send(packet);
+    private long acceptShareFromRunner() throws IOException {
+        nextRound();
+        return acceptSharesFromNPeers(1)[0].share;
     }
 
     /**
-     * Uses a for loop to send a share to everyone else in the group.
+     * Moves on to the next round and accepts the batch of shares that the Runner sent
+     * for it.
+     *
+     * @return the shares.
+     * @throws IOException see {@code Inbox.take()}.
+     */
+    private long[] acceptShareBatchFromRunner() throws IOException {
+        nextRound();
+        return acceptSharesFromNPeers(1)[0].values();
+    }
+
+    /**
+     * Sends peer i the share f[i] for the current round. See
+     * {@code Utils.distributeShares()}.
+     */
+    private void distributeShares(long[] f, HashMap<Integer, Integer> idToXMap) throws IOException {
+        Utils.distributeShares(f, idToXMap, Utils.NUM_PEERS, transport, session, round, id);
+    }
+
+    /**
+     * Encodes a share with {@code ShareCodec}, tagged with the current round, and
+     * sends it to everyone in the group (including this peer).
      *
      * @param shareWrapper the share to be broadcasted.
-     * @throws IOException see {@code sendShareToPeer()}
+     * @throws IOException see {@code Transport.broadcast()}
      */
     private void broadcastValue(Utils.ShareWrapper shareWrapper) throws IOException {
-        DatagramSocket datagramSocket = new DatagramSocket();
+        broadcast(encode(shareWrapper));
+    }
+
+    /**
+     * Sends an encoded message to everyone in the group (including this peer).
+     *
+     * @throws IOException see {@code Transport.broadcast()}
+     */
+    private void broadcast(ByteBuffer message) throws IOException {
         for (int i = 1; i <= Utils.NUM_PEERS; i++) {
-            String peerName = Utils.SERVICE_NAME_PEER + "_" + i;
-            sendShareToPeer(shareWrapper, peerName, datagramSocket, PORT);
+            Metrics.sent(i, message.remaining());
         }
-        datagramSocket.close();
+        transport.broadcast(message);
     }
 
     /**
-     * Accepts a single UDP message.
+     * Same as {@code broadcastValue()}, but sends the share to a single peer.
      *
-     * @return the received message.
-     * @throws IOException on {@code datagramSocket.receive()}
+     * @param to           the id of the peer.
+     * @param shareWrapper the share to be sent.
+     * @throws IOException see {@code Transport.send()}
      */
-    private String acceptMessage() throws IOException {
-        byte[] buff = new byte[256];
-        DatagramPacket datagramPacket = new DatagramPacket(buff, buff.length);
-        datagramSocket.receive(datagramPacket);
-        return new String(datagramPacket.getData(), 0, datagramPacket.getLength());
+    private void sendValue(int to, Utils.ShareWrapper shareWrapper) throws IOException {
+        ByteBuffer message = encode(shareWrapper);
+        Metrics.sent(to, message.remaining());
+        transport.send(to, message);
+    }
+
+    /**
+     * Tags a share with the current session, round and this peer's id, and encodes it
+     * into {@code sendBuffer}.
+     *
+     * @return {@code sendBuffer}, ready to be sent.
+     */
+    private ByteBuffer encode(Utils.ShareWrapper shareWrapper) {
+        int size = ShareCodec.size(shareWrapper);
+        if (sendBuffer.capacity() < size) {
+            sendBuffer = ByteBuffer.allocate(size);
+        }
+        return encode(shareWrapper, session, round, sendBuffer);
+    }
+
+    /**
+     * Same as {@code encode(shareWrapper)}, but for any session and round, into
+     * {@code buffer}, which must be large enough.
+     *
+     * @return {@code buffer}, ready to be sent.
+     */
+    private ByteBuffer encode(Utils.ShareWrapper shareWrapper, int session, int round,
+                              ByteBuffer buffer) {
+        shareWrapper.session = session;
+        shareWrapper.round = round;
+        shareWrapper.sender = id;
+        long start = System.nanoTime();
+        buffer.clear();
+        ShareCodec.encode(shareWrapper, buffer);
+        buffer.flip();
+        Metrics.ENCODE.recordSince(start);
+        return buffer;
     }
 
     /**
      * The runner might need to wait for peers to do some processing. This function
      * sends a continue message to runner to signal it to resume operations.
      *
-     * @throws IOException on {@code datagramSocket.send()}
+     * @throws IOException on {@code transport.send()}
      */
     private void sendContinueToRunner() throws IOException {
-        DatagramSocket datagramSocket = new DatagramSocket();
-        String message = "continue";
-        DatagramPacket datagramPacket = new DatagramPacket(message.getBytes(),
-                message.length(), InetAddress.getByName(Utils.SERVICE_NAME_RUNNER),
-                Runner.PORT);
-        datagramSocket.send(datagramPacket);
+        Metrics.sent(Utils.RUNNER_ID, Runner.CONTINUE_MESSAGE.length);
+        transport.send(Utils.RUNNER_ID, ByteBuffer.wrap(Runner.CONTINUE_MESSAGE));
     }
 
     /**
-     * Used to establish a "happens before" relation between multi node peers. For
-     * example, peer1 creates-a-socket-before peer2 sends a messages, or peer3
-     * sends-a-message-before peer4 sends it.
+     * Starts a new session. Every peer runs the same sequence of rounds in a session,
+     * so round numbers line up across peers without any coordination. The previous
+     * session is closed, so late shares for it are dropped.
+     *
+     * @param session the new session.
      */
-    private void timeout() {
-        try {
-            Thread.sleep(2000);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    private void beginSession(int session) {
+        if (this.session != 0) {
+            sessions.close(this.session);
         }
+        this.session = session;
+        this.round = 0;
+        this.inbox = sessions.inbox(session);
+    }
+
+    /**
+     * Moves on to the next round of the current session. Each step of a protocol
+     * (distributing shares, a reconstruction, receiving values from the Runner) is
+     * one round.
+     */
+    private void nextRound() {
+        round++;
     }
 }
@@ -1,96 +1,294 @@
-import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Random;
 
 /**
- * Represents a generic polynomial. Use new Polynomial() to create a new polynomial
- * with randomized 80bit co-efficients. Each Polynomial can calculate f(x), and
- * calculate the value of f(0) given n equations and n variables (if f is unknown).
+ * Represents a generic polynomial over {@code Utils.FIELD}. Use new Polynomial() to
+ * create a new polynomial with random co-efficients. Each Polynomial can calculate
+ * f(x), and calculate the value of f(0) given n equations and n variables (if f is
+ * unknown).
  */
 public class Polynomial {
-    BigInteger[] a;
-    int degree = 2;
+    /**
+     * The most sets of x that Lagrange co-efficients are cached for. Reconstructing
+     * from the first t+1 shares that arrive can use any of C(N, t+1) sets, in any
+     * order, so the cache drops the set that was used longest ago instead of
+     * growing without bound.
+     */
+    private static final int LAGRANGE_CACHE_SIZE = 1024;
+    private static final LinkedHashMap<XSet, long[]> LAGRANGE_CACHE =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<XSet, long[]> eldest) {
+                    return size() > LAGRANGE_CACHE_SIZE;
+                }
+            };
+    long[] a;
+    int degree;
 
     /**
-     * Ideally, we should be able to create n degree polynomial, but right now this
-     * constructor only creates a 2 degree polynomial, ie. ax^2+bx+c.
+     * Creates a polynomial of degree {@code Utils.DEGREE}.
      */
-    Polynomial(BigInteger secret) {
+    Polynomial(long secret) {
+        this(secret, Utils.DEGREE);
+    }
+
+    /**
+     * Creates a random polynomial of the given degree such that f(0)=secret. Any
+     * {@code degree + 1} shares of it are enough to find the secret.
+     */
+    Polynomial(long secret, int degree) {
         Random r = new Random();
-        int nBits = 80;
+        Field field = Utils.FIELD;
 
-        a = new BigInteger[degree + 1];
+        this.degree = degree;
+        a = new long[degree + 1];
 
         a[0] = secret;
-        a[1] = new BigInteger(nBits, r);
-        a[2] = new BigInteger(nBits, r);
+        for (int i = 1; i <= degree; i++) {
+            a[i] = field.random(r);
+        }
     }
 
     /**
-     * Given an x, calculates and return f(x)=a[2]x^2+a[1]x+a[0].
+     * Given an x, calculates and return f(x)=a[n]x^n+...+a[1]x+a[0]. Evaluation uses
+     * Horner's rule, f(x)=(...((a[n]x + a[n-1])x + a[n-2])x...)x + a[0], which needs n
+     * multiplications and no powers of x.
      *
      * @param x input x.
-     * @return the value of f(x). Evaluation is done by plugging the value of x into
-     * the polynomial representation.
+     * @return the value of f(x).
      */
-    public BigInteger f(int x) {
-        BigInteger result = new BigInteger("0");
-        for (int i = 0; i <= degree; i++) {
-            //a[2]*x^2 + a[1]*x^1 + a[0].
-            //The peril of using Java: having to write unreadable code for simple
-            // things :(
-            BigInteger multFactor = new BigInteger(String.valueOf((int) Math.pow(x, i)));
-            result = result.add(a[i].multiply(multFactor));
+    public long f(int x) {
+        Field field = Utils.FIELD;
+        long xInField = field.reduce(x);
+        long result = a[degree];
+        for (int i = degree - 1; i >= 0; i--) {
+            result = field.add(field.multiply(result, xInField), a[i]);
         }
         return result;
     }
 
     /**
-     * In a t,n scheme, given t values for x and t values for y, this function returns
-     * the value of f(0). This function is not generic and only works for a polynomial
-     * of degree 2, ie. ax^2+bx+c.
-     * The formula for calculating the secret is too complicated to be written in this
-     * doc. Please see README.md for the formula.
+     * Evaluates this polynomial at every value of {@code x} in a single pass over the
+     * co-efficients, such that result[k] = f(x[k]). The Horner steps for the
+     * different points don't depend on each other, so the CPU can overlap them.
+     *
+     * @param x      the points to evaluate f at.
+     * @param result an array at least as long as {@code x} to store f(x[k]) in.
+     */
+    public void f(int[] x, long[] result) {
+        Field field = Utils.FIELD;
+        long[] xInField = new long[x.length];
+        for (int k = 0; k < x.length; k++) {
+            xInField[k] = field.reduce(x[k]);
+        }
+        horner(a, xInField, result);
+    }
+
+    /**
+     * Evaluates many polynomials at the same points, such that
+     * result[k][j] = polynomials[j].f(x[k]). This is what a dealer needs to split a
+     * batch of secrets among peers: row k of {@code result} holds the shares for the
+     * peer at x[k].
+     *
+     * @param polynomials the polynomials to evaluate.
+     * @param x           the points to evaluate them at.
+     * @param result      an array with a row (at least {@code polynomials.length}
+     *                    long) for every value of {@code x}.
+     */
+    public static void f(Polynomial[] polynomials, int[] x, long[][] result) {
+        Field field = Utils.FIELD;
+        long[] xInField = new long[x.length];
+        for (int k = 0; k < x.length; k++) {
+            xInField[k] = field.reduce(x[k]);
+        }
+        long[] values = new long[x.length];
+        for (int j = 0; j < polynomials.length; j++) {
+            horner(polynomials[j].a, xInField, values);
+            for (int k = 0; k < x.length; k++) {
+                result[k][j] = values[k];
+            }
+        }
+    }
+
+    /**
+     * Sets result[k] to the value of the polynomial with co-efficients {@code a} at
+     * x[k], where every x[k] is already an element of the field.
      */
-    public BigInteger calculateSecret2Degree(int[] x, BigInteger[] y) {
-        BigInteger result;
-        result =
-                y[2].multiply(new BigInteger(String.valueOf(x[0] * x[1] * (x[0] - x[1]))))
-                        .add(y[0].multiply(new BigInteger(String.valueOf(x[1] * x[2] * (x[1] - x[2])))))
-                        .add(y[1].multiply(new BigInteger(String.valueOf(x[0] * x[2] * (x[2] - x[0])))));
-        return result.divide(new BigInteger(String.valueOf(
-                (x[2] * x[2]) - (x[2] * (x[1] + x[0])) + (x[0] * x[1]))).
-                multiply(new BigInteger(String.valueOf(x[0] - x[1]))));
+    static void horner(long[] a, long[] x, long[] result) {
+        Field field = Utils.FIELD;
+        int degree = a.length - 1;
+        for (int k = 0; k < x.length; k++) {
+            result[k] = a[degree];
+        }
+        for (int i = degree - 1; i >= 0; i--) {
+            long coefficient = a[i];
+            for (int k = 0; k < x.length; k++) {
+                result[k] = field.add(field.multiply(result[k], x[k]), coefficient);
+            }
+        }
     }
 
     /**
-     * Wrapper for calculating a secret given n equations and n variables. Currently
-     * only calls {@code calculateSecret2Degree()}.
-     * The function creates a fake Polynomial object and uses it to call the {@code
-     * calculateSecret2Degree()} function.
+     * In a t,n scheme, given at least t+1 values for x and y, this function returns
+     * the value of f(0) using Lagrange interpolation:
+     * f(0) = l[0]*y[0] + l[1]*y[1] + ... + l[t]*y[t], where
+     * l[i] = product over j!=i of x[j]/(x[j]-x[i]).
+     * The co-efficients l only depend on the values of x, so they are calculated once
+     * per set of x and cached; after that, finding a secret is a dot product.
      *
-     * @param x      the n values of x in f1(x), f2(x)...fn(x).
+     * @param x      the n values of x in f1(x), f2(x)...fn(x). Only the first
+     *               {@code degree + 1} values are used.
      * @param y      the n values of f1(x), f2(x)...fn(x).
      * @param degree the degree of the polynomial in question.
      * @return The calculated secret.
+     * @throws UnsupportedPolynomialException if there are less than {@code degree + 1}
+     *                                        values of x.
      */
-    public static BigInteger calculateSecret(int[] x, BigInteger[] y, int degree) {
-        if (degree != 2) {
-            try {
-                throw new UnsupportedPolynomialException();
-            } catch (UnsupportedPolynomialException e) {
-                e.printStackTrace();
-                System.err.println("Trying to solve polynomial assuming degree 2...");
+    public static long calculateSecret(int[] x, long[] y, int degree) {
+        int numPoints = degree + 1;
+        if (x.length < numPoints || y.length < numPoints) {
+            throw new UnsupportedPolynomialException(degree, Math.min(x.length, y.length));
+        }
+        long[] l = getLagrangeCoefficients(x, numPoints);
+        Field field = Utils.FIELD;
+        long result = 0;
+        for (int i = 0; i < numPoints; i++) {
+            result = field.add(result, field.multiply(l[i], y[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@code calculateSecret()}, but for many polynomials that were all
+     * evaluated at the same x: y[i][k] is the value of polynomial k at x[i]. The
+     * Lagrange co-efficients are looked up once and used for every polynomial.
+     *
+     * @return an array such that result[k] is f_k(0).
+     * @throws UnsupportedPolynomialException if there are less than {@code degree + 1}
+     *                                        values of x.
+     */
+    public static long[] calculateSecrets(int[] x, long[][] y, int degree) {
+        int numPoints = degree + 1;
+        if (x.length < numPoints || y.length < numPoints) {
+            throw new UnsupportedPolynomialException(degree, Math.min(x.length, y.length));
+        }
+        long[] l = getLagrangeCoefficients(x, numPoints);
+        Field field = Utils.FIELD;
+        long[] result = new long[y[0].length];
+        for (int i = 0; i < numPoints; i++) {
+            long[] yi = y[i];
+            for (int k = 0; k < result.length; k++) {
+                result[k] = field.add(result[k], field.multiply(l[i], yi[k]));
             }
         }
-        Polynomial polynomial = new Polynomial(new BigInteger("0"));
-        return polynomial.calculateSecret2Degree(x, y);
+        return result;
+    }
+
+    /**
+     * Returns the Lagrange co-efficients at 0 for the first {@code numPoints} values
+     * of {@code x}, calculating and caching them if this set of x (in this order) is
+     * not in the cache (see {@code LAGRANGE_CACHE_SIZE}).
+     */
+    static long[] getLagrangeCoefficients(int[] x, int numPoints) {
+        return getLagrangeCoefficients(x, numPoints, 0);
+    }
+
+    /**
+     * Same as {@code getLagrangeCoefficients(int[], int)}, but for finding f(at)
+     * instead of f(0): f(at) = l[0]*y[0] + ... + l[numPoints-1]*y[numPoints-1], where
+     * l[i] = product over j!=i of (at-x[j])/(x[i]-x[j]).
+     */
+    static long[] getLagrangeCoefficients(int[] x, int numPoints, int at) {
+        long[] l;
+        synchronized (LAGRANGE_CACHE) {
+            l = LAGRANGE_CACHE.get(new XSet(x, numPoints, at));
+        }
+        if (l == null) {
+            int[] points = Arrays.copyOf(x, numPoints);
+            l = calculateLagrangeCoefficients(points, at);
+            synchronized (LAGRANGE_CACHE) {
+                LAGRANGE_CACHE.put(new XSet(points, numPoints, at), l);
+            }
+        }
+        return l;
+    }
+
+    /**
+     * Same as {@code getLagrangeCoefficients(x, x.length, at)}, but without the
+     * cache, for sets of x that are unlikely to be seen again.
+     */
+    static long[] calculateLagrangeCoefficients(int[] x, int at) {
+        Field field = Utils.FIELD;
+        long[] l = new long[x.length];
+        for (int i = 0; i < x.length; i++) {
+            long numerator = 1;
+            long denominator = 1;
+            for (int j = 0; j < x.length; j++) {
+                if (j != i) {
+                    numerator = field.multiply(numerator, field.reduce((long) at - x[j]));
+                    denominator = field.multiply(denominator,
+                            field.reduce((long) x[i] - x[j]));
+                }
+            }
+            l[i] = field.multiply(numerator, field.inverse(denominator));
+        }
+        return l;
+    }
+
+    /**
+     * Key for the Lagrange co-efficient cache: the first {@code length} values of
+     * {@code x}, and the point {@code at} to interpolate at.
+     */
+    private static class XSet {
+        final int[] x;
+        final int length;
+        final int at;
+        final int hash;
+
+        XSet(int[] x, int length, int at) {
+            this.x = x;
+            this.length = length;
+            this.at = at;
+            int h = 31 * length + at;
+            for (int i = 0; i < length; i++) {
+                h = 31 * h + x[i];
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof XSet)) {
+                return false;
+            }
+            XSet other = (XSet) o;
+            if (other.length != length || other.at != at || other.hash != hash) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (other.x[i] != x[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
     }
 
     @Override
     public String toString() {
-        return "f(x) = " +
-                a[2] + "x^2 + " +
-                a[1] + "x + " +
-                a[0];
+        StringBuilder result = new StringBuilder("f(x) = ");
+        for (int i = degree; i >= 1; i--) {
+            result.append(a[i]).append(i == 1 ? "x + " : "x^" + i + " + ");
+        }
+        return result.append(a[0]).toString();
     }
 }
@@ -0,0 +1,401 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes the messages of another {@code Transport} (like {@code UdpTransport}, which
+ * may drop, duplicate or reorder datagrams) arrive exactly once. Every message gets
+ * a header with the ids of the sender and the receiver, the sender's epoch, a
+ * sequence number, which counts the messages from the sender to that receiver, and
+ * the floor: the lowest sequence number that the sender still waits for an ack of.
+ * - The receiver acknowledges every message it gets, duplicates included, with a
+ * selective ack: the message itself, the sequence number below which it has
+ * everything, and a bitmap of the 64 messages after that. So a message is acked
+ * however far past a missing one it is. The sender doesn't send anything below the floor
+ * again, so the receiver counts everything below it as received, which moves its
+ * window past a message that the sender gave up on. Messages more than
+ * {@code MAX_AHEAD} past the window are dropped (and sent again later), which
+ * bounds what the receiver keeps.
+ * - The sender keeps every message until it is acked, and sends it again if the ack
+ * doesn't come within a timeout, which doubles with every attempt up to
+ * {@code MAX_TIMEOUT_MILLIS}. After {@code MAX_ATTEMPTS} attempts
+ * ({@code GIVE_UP_MILLIS}, about 8.5 seconds) the message is dropped and the failure is logged, so a dead peer costs
+ * a bounded amount of time and memory. The receiver's {@code Inbox} then fails the
+ * round that waits for it, once {@code Inbox.TIMEOUT_MILLIS} are up. Every message
+ * that is given up on is counted in {@code Metrics.MESSAGES_ABANDONED}.
+ * - The receiver drops messages it already got.
+ * Messages are handed to the {@code Handler} as soon as they first arrive, not in
+ * the order they were sent: shares are tagged with their session and round, and the
+ * {@code Inbox} of the session puts them in order, so one lost message only holds up
+ * its own round instead of everything after it.
+ * The epoch is the time the transport was created, in its high bits, with random
+ * low bits, so it is larger after a party restarts: its sequence numbers start
+ * over without its new messages being taken as duplicates, and a late datagram
+ * from before the restart is dropped instead of resetting the window again.
+ * Streams ({@code connect()} and {@code accept()}) are TCP already, and are passed
+ * through.
+ */
+public class ReliableTransport implements Transport {
+    private static final byte DATA = 1;
+    private static final byte ACK = 2;
+    /**
+     * type, from, to, epoch, sequence number and floor.
+     */
+    static final int HEADER_SIZE = 1 + 4 + 4 + 8 + 8 + 8;
+    private static final int FLOOR_OFFSET = HEADER_SIZE - 8;
+    /**
+     * type, from, to, epoch, everything below, the bitmap and the message that is
+     * acked, or {@code NOT_ACKED} if it was dropped.
+     */
+    private static final int ACK_SIZE = 1 + 4 + 4 + 8 + 8 + 8 + 8;
+    private static final long NOT_ACKED = -1;
+    private static final long INITIAL_TIMEOUT_MILLIS = 50;
+    private static final long MAX_TIMEOUT_MILLIS = 1000;
+    private static final int MAX_ATTEMPTS = 12;
+    private static final long TICK_MILLIS = 10;
+    /**
+     * How far past the lowest missing message the receiver keeps messages.
+     */
+    static final long MAX_AHEAD = 1 << 16;
+    private static final int RANDOM_EPOCH_BITS = 20;
+    /**
+     * How long a message may still arrive after it was first sent: the timeouts of
+     * all its attempts, plus a tick per attempt.
+     */
+    static final long GIVE_UP_MILLIS = giveUpMillis();
+
+    private final Transport transport;
+    private final long epoch = (System.currentTimeMillis() << RANDOM_EPOCH_BITS) |
+            new SecureRandom().nextInt(1 << RANDOM_EPOCH_BITS);
+    private final Outgoing[] outgoing = new Outgoing[Utils.NUM_PEERS + 1];
+    private final Incoming[] incoming = new Incoming[Utils.NUM_PEERS + 1];
+    private final ByteBuffer ackBuffer = ByteBuffer.allocate(ACK_SIZE);
+    private final ScheduledExecutorService timer;
+    private volatile int id;
+
+    /**
+     * A message that was sent but not acked yet.
+     */
+    private static class Unacked {
+        final byte[] message;
+        int attempts = 1;
+        long timeoutMillis = INITIAL_TIMEOUT_MILLIS;
+        long deadline;
+
+        Unacked(byte[] message, long now) {
+            this.message = message;
+            this.deadline = now + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        }
+    }
+
+    /**
+     * The messages to a single party.
+     */
+    private static class Outgoing {
+        long next;
+        final TreeMap<Long, Unacked> unacked = new TreeMap<>();
+
+        /**
+         * @return the lowest sequence number that is not acked or given up on yet.
+         */
+        long floor() {
+            return unacked.isEmpty() ? next : unacked.firstKey();
+        }
+    }
+
+    /**
+     * The messages from a single party: all the sequence numbers below {@code below}
+     * were received or given up on, and the ones in {@code above} were received.
+     */
+    private static class Incoming {
+        long epoch;
+        long below;
+        final HashSet<Long> above = new HashSet<>();
+
+        /**
+         * Takes on {@code epoch} if it is newer than the one so far, which starts the
+         * window over.
+         *
+         * @return false if {@code epoch} is older, and its messages must be dropped.
+         */
+        boolean accept(long epoch) {
+            if (epoch < this.epoch) {
+                return false;
+            }
+            if (epoch > this.epoch) {
+                this.epoch = epoch;
+                below = 0;
+                above.clear();
+            }
+            return true;
+        }
+
+        /**
+         * @param floor the sender's floor: nothing below it is sent anymore.
+         * @return true if the message wasn't received before.
+         */
+        boolean receive(long floor, long sequence) {
+            if (floor > below) {
+                below = floor;
+                above.removeIf(received -> received < floor);
+            }
+            if (sequence < below || sequence >= below + MAX_AHEAD || !above.add(sequence)) {
+                return false;
+            }
+            while (above.remove(below)) {
+                below++;
+            }
+            return true;
+        }
+
+        /**
+         * @return true if the message was received, or given up on by the sender.
+         */
+        boolean has(long sequence) {
+            return sequence < below || above.contains(sequence);
+        }
+
+        /**
+         * @return bit k is set if message below+1+k was received.
+         */
+        long bitmap() {
+            long bitmap = 0;
+            for (int k = 0; k < Long.SIZE; k++) {
+                if (above.contains(below + 1 + k)) {
+                    bitmap |= 1L << k;
+                }
+            }
+            return bitmap;
+        }
+    }
+
+    /**
+     * A transport for a peer, which doesn't know its id until it is told by the
+     * Runner. It learns it from the first message it receives, which is addressed to
+     * it; it can't send anything before that.
+     */
+    public ReliableTransport(Transport transport) {
+        this(transport, -1);
+    }
+
+    /**
+     * A transport for the party with the given id.
+     */
+    public ReliableTransport(Transport transport, int id) {
+        this.transport = transport;
+        this.id = id;
+        for (int i = 0; i <= Utils.NUM_PEERS; i++) {
+            outgoing[i] = new Outgoing();
+            incoming[i] = new Incoming();
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "reliable-retransmit");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::retransmit, TICK_MILLIS, TICK_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the message with a header, and keeps a copy of it until it is acked.
+     *
+     * @throws IllegalStateException if this party doesn't know its id yet.
+     */
+    @Override
+    public void send(int to, ByteBuffer message) throws IOException {
+        int from = id;
+        if (from == -1) {
+            throw new IllegalStateException("Can't send before receiving a message");
+        }
+        byte[] bytes = new byte[HEADER_SIZE + message.remaining()];
+        Outgoing out = outgoing[to];
+        synchronized (out) {
+            long sequence = out.next++;
+            out.unacked.put(sequence, new Unacked(bytes, System.nanoTime()));
+            ByteBuffer.wrap(bytes).put(DATA).putInt(from).putInt(to).putLong(epoch)
+                    .putLong(sequence).putLong(out.floor()).put(message.duplicate());
+        }
+        transport.send(to, ByteBuffer.wrap(bytes));
+    }
+
+    @Override
+    public void listen(Handler handler) throws IOException {
+        transport.listen(message -> onMessage(message, handler));
+    }
+
+    /**
+     * Called on the event loop of the underlying transport. Acks and drops duplicate
+     * data messages, and hands new ones to {@code handler} without their header.
+     */
+    private void onMessage(ByteBuffer message, Handler handler) {
+        if (message.remaining() < 1) {
+            return;
+        }
+        byte type = message.get(message.position());
+        if (type == DATA && message.remaining() >= HEADER_SIZE) {
+            ByteBuffer header = message.duplicate();
+            header.get();
+            int from = header.getInt();
+            int to = header.getInt();
+            long senderEpoch = header.getLong();
+            long sequence = header.getLong();
+            long floor = header.getLong();
+            if (id == -1) {
+                id = to;
+            }
+            if (from < 0 || from > Utils.NUM_PEERS || to != id) {
+                return;
+            }
+            Incoming in = incoming[from];
+            boolean first;
+            synchronized (in) {
+                if (!in.accept(senderEpoch)) {
+                    return;
+                }
+                first = in.receive(floor, sequence);
+                ackBuffer.clear();
+                ackBuffer.put(ACK).putInt(to).putInt(from).putLong(senderEpoch)
+                        .putLong(in.below).putLong(in.bitmap())
+                        .putLong(in.has(sequence) ? sequence : NOT_ACKED).flip();
+            }
+            try {
+                transport.send(from, ackBuffer);
+            } catch (IOException e) {
+                // The sender will send the message again, and get another ack then.
+            }
+            if (first) {
+                message.position(message.position() + HEADER_SIZE);
+                handler.onMessage(message);
+            }
+        } else if (type == ACK && message.remaining() >= ACK_SIZE) {
+            ByteBuffer ack = message.duplicate();
+            ack.get();
+            int from = ack.getInt();
+            ack.getInt();
+            long ackedEpoch = ack.getLong();
+            long below = ack.getLong();
+            long bitmap = ack.getLong();
+            long acked = ack.getLong();
+            if (ackedEpoch != epoch || from < 0 || from > Utils.NUM_PEERS) {
+                return;
+            }
+            Outgoing out = outgoing[from];
+            synchronized (out) {
+                out.unacked.headMap(below).clear();
+                for (int k = 0; k < Long.SIZE; k++) {
+                    if ((bitmap & (1L << k)) != 0) {
+                        out.unacked.remove(below + 1 + k);
+                    }
+                }
+                out.unacked.remove(acked);
+                if (out.unacked.isEmpty()) {
+                    out.notifyAll();
+                }
+            }
+        }
+    }
+
+    private static long giveUpMillis() {
+        long total = 0;
+        long timeoutMillis = INITIAL_TIMEOUT_MILLIS;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            total += timeoutMillis + TICK_MILLIS;
+            timeoutMillis = Math.min(2 * timeoutMillis, MAX_TIMEOUT_MILLIS);
+        }
+        return total;
+    }
+
+    /**
+     * Sends the messages whose ack is overdue again, and gives up on the ones that
+     * ran out of attempts. Every message is sent again with the current floor, so the
+     * receiver learns about the messages that were given up on. That goes into a
+     * copy, since the stored message may still be being sent.
+     */
+    private void retransmit() {
+        long now = System.nanoTime();
+        for (int to = 0; to <= Utils.NUM_PEERS; to++) {
+            ArrayList<byte[]> due = new ArrayList<>();
+            Outgoing out = outgoing[to];
+            synchronized (out) {
+                Iterator<Map.Entry<Long, Unacked>> iterator = out.unacked.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    Map.Entry<Long, Unacked> entry = iterator.next();
+                    Unacked unacked = entry.getValue();
+                    if (now - unacked.deadline < 0) {
+                        continue;
+                    }
+                    if (unacked.attempts == MAX_ATTEMPTS) {
+                        System.err.println("Giving up on message " + entry.getKey() +
+                                " to party " + to + " after " + MAX_ATTEMPTS + " attempts");
+                        Metrics.MESSAGES_ABANDONED.increment();
+                        iterator.remove();
+                        if (out.unacked.isEmpty()) {
+                            out.notifyAll();
+                        }
+                        continue;
+                    }
+                    unacked.attempts++;
+                    unacked.timeoutMillis = Math.min(2 * unacked.timeoutMillis,
+                            MAX_TIMEOUT_MILLIS);
+                    unacked.deadline = now + TimeUnit.MILLISECONDS.toNanos(unacked.timeoutMillis);
+                    due.add(unacked.message.clone());
+                }
+                long floor = out.floor();
+                for (byte[] message : due) {
+                    ByteBuffer.wrap(message).putLong(FLOOR_OFFSET, floor);
+                }
+            }
+            for (byte[] message : due) {
+                try {
+                    transport.send(to, ByteBuffer.wrap(message));
+                } catch (IOException | RuntimeException e) {
+                    // Tried again on the next timeout.
+                }
+            }
+        }
+    }
+
+    @Override
+    public OutputStream connect(int to) throws IOException {
+        return transport.connect(to);
+    }
+
+    @Override
+    public InputStream accept() throws IOException {
+        return transport.accept();
+    }
+
+    /**
+     * Waits until every message that was sent is acked or given up on, then closes
+     * the underlying transport. That takes at most as long as the retries of a single
+     * message.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            for (Outgoing out : outgoing) {
+                synchronized (out) {
+                    while (!out.unacked.isEmpty()) {
+                        out.wait();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            timer.shutdownNow();
+            transport.close();
+        }
+    }
+}
@@ -1,9 +1,13 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.math.BigInteger;
-import java.net.*;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
 import java.util.HashMap;
 import java.util.Random;
+import java.util.concurrent.Semaphore;
 
 /**
  * Runs the main functionality. It assigns IDs to peers, creates the first secret and
@@ -11,89 +15,110 @@ import java.util.Random;
  * are used in multi party private value multiplication.
  */
 public class Runner {
-    BigInteger secret;
+    long secret;
     protected static final int PORT = 7890;
-    DatagramSocket datagramSocket = new DatagramSocket(PORT);
+    static final byte[] CONTINUE_MESSAGE = "continue".getBytes(StandardCharsets.US_ASCII);
+    final Transport transport;
+    private final Semaphore continues = new Semaphore(0);
+    private TripleStream.Sender tripleStream;
 
-    public Runner() throws SocketException {
+    public Runner(Transport transport) {
+        this.transport = transport;
     }
 
     public static void main(String[] args) throws IOException {
-        Runner runner = new Runner();
-        runner.demonstrateTOverNSecretSharing();
-        runner.demonstrateBeaverTriplesNaive();
-        runner.demonstrateBeaverTriplesFast();
+        Utils.configure();
+        Metrics.expose();
+        Runner runner = new Runner(new ReliableTransport(new UdpTransport(PORT, -1),
+                Utils.RUNNER_ID));
+        runner.run();
     }
 
     /**
-     * Creates one million beaver triples, creates shares for them, then distributes
-     * them to peers.
+     * Runs the Runner's side of all the demonstrations, then closes the transport and
+     * stops streaming triples.
+     *
+     * @throws IOException if something goes wrong during networking/IO communication.
+     */
+    public void run() throws IOException {
+        try (transport) {
+            transport.listen(message -> continues.release());
+            demonstrateTOverNSecretSharing();
+            demonstrateBeaverTriplesNaive();
+            demonstrateBeaverTriplesFast();
+        } finally {
+            if (tripleStream != null) {
+                tripleStream.close();
+            }
+        }
+    }
+
+    /**
+     * Creates one million beaver triples and shares for them, and streams them to
+     * peers with {@code TripleStream} in the background, as fast as the peers take
+     * them. With {@code Utils.DEALER} set to SEEDED, the triples are dealt by
+     * {@code dealSeededTriples()} instead, and with STORE they are not dealt at all:
+     * peers take them from the files {@code TripleStore} dealt ahead of time.
      * @throws IOException on creating a new TCP socket.
      */
     private void demonstrateBeaverTriplesNaive() throws IOException {
         waitForContinue();
-        Utils.OneMillionBeaverTriples millionBeaverTriples =
-                new Utils.OneMillionBeaverTriples();
-        System.out.println("Got 1 million triples.");
-
-        int n = millionBeaverTriples.n;
-        BigInteger[][] a = new BigInteger[Utils.NUM_PEERS + 1][n];
-        BigInteger[][] b = new BigInteger[Utils.NUM_PEERS + 1][n];
-        BigInteger[][] c = new BigInteger[Utils.NUM_PEERS + 1][n];
-
-        for (int j = 0; j < n; j++) {
-            Polynomial polynomialA = new Polynomial(millionBeaverTriples.a[j]);
-            Polynomial polynomialB = new Polynomial(millionBeaverTriples.b[j]);
-            Polynomial polynomialC = new Polynomial(millionBeaverTriples.c[j]);
-            for (int i = 1; i <= Utils.NUM_PEERS; i++) {
-                a[i][j] = polynomialA.f(i);
-                b[i][j] = polynomialB.f(i);
-                c[i][j] = polynomialC.f(i);
-            }
+        if (Utils.DEALER == Utils.Dealer.STORE) {
+            return;
         }
-        System.out.println("Split 1 million triples");
+        if (Utils.DEALER == Utils.Dealer.SEEDED) {
+            dealSeededTriples();
+            return;
+        }
+        tripleStream = new TripleStream.Sender(transport, Utils.OneMillionBeaverTriples.SIZE);
+        System.out.println("Streaming 1 million triples");
+    }
 
-        // Send a[i] to peer i.
+    /**
+     * Deals one million beaver triples with {@code SeededDealer}: peers get a seed to
+     * expand most of their shares from, and only the shares that can't be random are
+     * sent.
+     * @throws IOException on creating a new TCP socket.
+     */
+    private void dealSeededTriples() throws IOException {
+        SeededDealer.Package[] packages =
+                SeededDealer.deal(Utils.OneMillionBeaverTriples.SIZE, new SecureRandom());
+        System.out.println("Dealt 1 million triples with seeds.");
         for (int i = 1; i <= Utils.NUM_PEERS; i++) {
-            Utils.OneMillionBeaverTriples sharesOfTriples =
-                    new Utils.OneMillionBeaverTriples(a[i], b[i], c[i]);
-            Socket socket =
-                    new Socket(InetAddress.getByName(Utils.SERVICE_NAME_PEER + "_" + i),
-                            Peer.TCP_PORT);
-            PrintWriter printWriter = new PrintWriter(socket.getOutputStream(), true);
-            printWriter.println(sharesOfTriples.toString());
-            socket.close();
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(transport.connect(i)))) {
+                packages[i].write(out);
+            }
         }
     }
 
     /**
-     * Creates a new Beaver Triple using PRNG and sends to peers.
-     * @throws IOException see {@code Utils.distributeShares()}
+     * Creates as many Beaver Triples as the circuit of the fast demonstration needs
+     * with {@code ParallelDealer} and sends them to peers. Peers expect the shares of all the a's, b's
+     * and c's as batches in rounds 1, 2 and 3 of the session.
+     * @throws IOException see {@code Utils.distributeShareBatches()}
      */
     private void demonstrateBeaverTriplesFast() throws IOException {
-        for (int i = 0; i < 2; i++) {
-            waitForContinue();
-            int numBits = 20;
-            Random r = new Random();
-            BigInteger a = new BigInteger(numBits, r);
-            BigInteger b = new BigInteger(numBits, r);
-            BigInteger c = a.multiply(b);
-
-            Polynomial polynomialA = new Polynomial(a);
-            Polynomial polynomialB = new Polynomial(b);
-            Polynomial polynomialC = new Polynomial(c);
-            HashMap<Integer, Integer> idToXMap = Utils.getIDToXWithoutRandomization();
-            BigInteger[] fA = Utils.getF(polynomialA, idToXMap);
-            BigInteger[] fB = Utils.getF(polynomialB, idToXMap);
-            BigInteger[] fC = Utils.getF(polynomialC, idToXMap);
-
-            Utils.distributeShares(fA, idToXMap, Utils.NUM_PEERS, Utils.SERVICE_NAME_PEER,
-                    Peer.PORT);
-            Utils.distributeShares(fB, idToXMap, Utils.NUM_PEERS, Utils.SERVICE_NAME_PEER,
-                    Peer.PORT);
-            Utils.distributeShares(fC, idToXMap, Utils.NUM_PEERS, Utils.SERVICE_NAME_PEER,
-                    Peer.PORT);
+        int numTriples = Peer.circuitForFastDemo().numMultiplications();
+        waitForContinue();
+        Utils.OneMillionBeaverTriples[] sharesOfTriples = ParallelDealer.deal(numTriples);
+        HashMap<Integer, Integer> idToXMap = Utils.getIDToXWithoutRandomization();
+        long[][] fA = new long[Utils.NUM_PEERS + 1][];
+        long[][] fB = new long[Utils.NUM_PEERS + 1][];
+        long[][] fC = new long[Utils.NUM_PEERS + 1][];
+        for (int i = 1; i <= Utils.NUM_PEERS; i++) {
+            fA[i] = sharesOfTriples[i].a;
+            fB[i] = sharesOfTriples[i].b;
+            fC[i] = sharesOfTriples[i].c;
         }
+
+        int session = Utils.SESSION_BEAVER_FAST;
+        Utils.distributeShareBatches(fA, idToXMap, Utils.NUM_PEERS, transport, session, 1,
+                Utils.RUNNER_ID);
+        Utils.distributeShareBatches(fB, idToXMap, Utils.NUM_PEERS, transport, session, 2,
+                Utils.RUNNER_ID);
+        Utils.distributeShareBatches(fC, idToXMap, Utils.NUM_PEERS, transport, session, 3,
+                Utils.RUNNER_ID);
     }
 
     /**
@@ -106,34 +131,34 @@ public class Runner {
         secret = getSecret();
         Polynomial polynomial = new Polynomial(secret);
         HashMap<Integer, Integer> idToXMap = Utils.getIDToXMapping();
-        BigInteger[] f = Utils.getF(polynomial, idToXMap);
+        long[] f = Utils.getF(polynomial, idToXMap);
         System.out.println("Secret is: " + secret + " and polynomial is: " + polynomial);
         System.out.println("Distributing shares to peers. Peer i gets share = f(x).");
-        Utils.distributeShares(f, idToXMap, Utils.NUM_PEERS, Utils.SERVICE_NAME_PEER,
-                Peer.PORT);
+        Utils.distributeShares(f, idToXMap, Utils.NUM_PEERS, transport,
+                Utils.SESSION_RECONSTRUCTION, 1, Utils.RUNNER_ID);
     }
 
     /**
      * For the secret sharing protocol, the Runner class has the secret. Ideally, this
      * secret should be taken from the user, but currently is generated randomly.
      *
-     * @return the secret.
+     * @return the secret, a random element of {@code Utils.FIELD}.
      */
-    public BigInteger getSecret() {
-        int numBits = 80;
+    public long getSecret() {
         Random r = new Random();
-        return new BigInteger(numBits, r);
+        return Utils.FIELD.random(r);
     }
 
     /**
-     * "Pauses" the Runner until a signal to continue is received from the peer.
-     * @throws IOException on {@code datagramSocket.receive()}.
+     * "Pauses" the Runner until a signal to continue is received from every peer.
+     * @throws IOException if interrupted while waiting.
      */
     private void waitForContinue() throws IOException {
-        for (int i = 0; i < Utils.NUM_PEERS; i++) {
-            byte[] buffer = new byte[256];
-            DatagramPacket datagramPacket = new DatagramPacket(buffer, buffer.length);
-            datagramSocket.receive(datagramPacket);
+        try {
+            continues.acquire(Utils.NUM_PEERS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
         }
     }
 }
@@ -0,0 +1,200 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Deals Beaver triples with seeds instead of sending every share. A share that is
+ * uniformly random anyway can be replaced by a short seed, from which the peer
+ * expands it locally with a PRG (AES in counter mode, which the JVM runs with the
+ * AES instructions of the CPU).
+ * <p>
+ * A Shamir sharing of degree t is fixed by t+1 of its values, so at most t+1 shares
+ * of each value can be random:
+ * - a and b are random, so peers 1 to t+1 expand their shares of a and b from
+ * their seeds. That fixes a and b (at x=0) and the shares of the other peers.
+ * - c=a*b is not random, so only peers 1 to t expand their shares of c. Together
+ * with c at x=0 that fixes the share of peer t+1, which the dealer sends to it as
+ * a correction.
+ * - peers t+2 to N get all their shares of a, b and c from the dealer.
+ * The dealer sends n*(1+3*(N-t-1)) values for n triples instead of 3*n*N, which is
+ * a factor of N less when t=N-1. Peers use their id as x, like
+ * {@code Utils.getIDToXWithoutRandomization()}.
+ */
+public class SeededDealer {
+    static final int SEED_BYTES = 16;
+    private static final int STREAM_A = 0;
+    private static final int STREAM_B = 1;
+    private static final int STREAM_C = 2;
+    private static final int BLOCK_BYTES = 8192;
+
+    /**
+     * What the dealer sends to a single peer for n triples: a seed (peers 1 to t+1)
+     * and some values, which are the corrections of c for peer t+1, and all the
+     * shares of a, b and c (one after the other) for peers t+2 to N.
+     */
+    static class Package {
+        final int n;
+        final byte[] seed;
+        final long[] values;
+
+        Package(int n, byte[] seed, long[] values) {
+            this.n = n;
+            this.seed = seed;
+            this.values = values;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(n);
+            out.writeInt(seed.length);
+            out.write(seed);
+            out.writeInt(values.length);
+            for (long value : values) {
+                out.writeLong(value);
+            }
+        }
+
+        static Package read(DataInputStream in) throws IOException {
+            int n = in.readInt();
+            byte[] seed = new byte[in.readInt()];
+            in.readFully(seed);
+            long[] values = new long[in.readInt()];
+            for (int j = 0; j < values.length; j++) {
+                values[j] = in.readLong();
+            }
+            return new Package(n, seed, values);
+        }
+    }
+
+    /**
+     * Deals {@code n} random triples to peers 1 to {@code Utils.NUM_PEERS}.
+     *
+     * @return an array such that result[i] is the package for peer i.
+     */
+    static Package[] deal(int n, SecureRandom random) {
+        int numPeers = Utils.NUM_PEERS;
+        int t = Utils.DEGREE;
+        Field field = Utils.FIELD;
+        Package[] packages = new Package[numPeers + 1];
+        long[][] a = new long[t + 1][];
+        long[][] b = new long[t + 1][];
+        long[][] c = new long[t + 1][];
+        int[] seeded = new int[t + 1];
+        for (int i = 1; i <= t + 1; i++) {
+            byte[] seed = new byte[SEED_BYTES];
+            random.nextBytes(seed);
+            seeded[i - 1] = i;
+            a[i - 1] = expand(seed, STREAM_A, n);
+            b[i - 1] = expand(seed, STREAM_B, n);
+            if (i <= t) {
+                c[i - 1] = expand(seed, STREAM_C, n);
+            }
+            packages[i] = new Package(n, seed, new long[0]);
+        }
+
+        // c[0..t-1] are the shares of peers 1 to t; c at x=0 is a*b.
+        long[] secretA = interpolate(seeded, a, 0, n);
+        long[] secretB = interpolate(seeded, b, 0, n);
+        long[] productAB = new long[n];
+        for (int j = 0; j < n; j++) {
+            productAB[j] = field.multiply(secretA[j], secretB[j]);
+        }
+        int[] fixedC = new int[t + 1];
+        long[][] valuesC = new long[t + 1][];
+        valuesC[0] = productAB;
+        for (int i = 1; i <= t; i++) {
+            fixedC[i] = i;
+            valuesC[i] = c[i - 1];
+        }
+        packages[t + 1] = new Package(n, packages[t + 1].seed,
+                interpolate(fixedC, valuesC, t + 1, n));
+
+        for (int i = t + 2; i <= numPeers; i++) {
+            long[] values = new long[3 * n];
+            System.arraycopy(interpolate(seeded, a, i, n), 0, values, 0, n);
+            System.arraycopy(interpolate(seeded, b, i, n), 0, values, n, n);
+            System.arraycopy(interpolate(fixedC, valuesC, i, n), 0, values, 2 * n, n);
+            packages[i] = new Package(n, new byte[0], values);
+        }
+        return packages;
+    }
+
+    /**
+     * Turns the package of peer {@code id} back into its shares of the triples.
+     */
+    static Utils.OneMillionBeaverTriples expand(int id, Package received) {
+        int t = Utils.DEGREE;
+        int n = received.n;
+        if (id <= t) {
+            return new Utils.OneMillionBeaverTriples(expand(received.seed, STREAM_A, n),
+                    expand(received.seed, STREAM_B, n), expand(received.seed, STREAM_C, n));
+        }
+        if (id == t + 1) {
+            return new Utils.OneMillionBeaverTriples(expand(received.seed, STREAM_A, n),
+                    expand(received.seed, STREAM_B, n), received.values);
+        }
+        long[] values = received.values;
+        return new Utils.OneMillionBeaverTriples(Arrays.copyOfRange(values, 0, n),
+                Arrays.copyOfRange(values, n, 2 * n),
+                Arrays.copyOfRange(values, 2 * n, 3 * n));
+    }
+
+    /**
+     * Expands a seed into {@code n} elements of the field. Every seed has a few
+     * independent streams, one per value of a triple. The key stream of AES-CTR is
+     * read as longs, and every long is turned into an element the same way as
+     * {@code MersenneField.random()} does.
+     */
+    static long[] expand(byte[] seed, int stream, int n) {
+        Cipher cipher;
+        try {
+            cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            byte[] iv = ByteBuffer.allocate(16).putInt(stream).array();
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(seed, "AES"),
+                    new IvParameterSpec(iv));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/CTR is not available", e);
+        }
+        long modulus = Utils.FIELD.modulus();
+        long[] result = new long[n];
+        byte[] zeros = new byte[BLOCK_BYTES];
+        ByteBuffer keyStream = ByteBuffer.allocate(BLOCK_BYTES);
+        int j = 0;
+        while (j < n) {
+            keyStream.clear();
+            keyStream.put(cipher.update(zeros));
+            keyStream.flip();
+            while (j < n && keyStream.remaining() >= Long.BYTES) {
+                long value = keyStream.getLong() >>> 3;
+                if (value < modulus) {
+                    result[j++] = value;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the values at {@code at} of the n polynomials of degree t that go
+     * through the points (x[i], y[i][j]).
+     */
+    private static long[] interpolate(int[] x, long[][] y, int at, int n) {
+        Field field = Utils.FIELD;
+        long[] l = Polynomial.getLagrangeCoefficients(x, x.length, at);
+        long[] result = new long[n];
+        for (int i = 0; i < x.length; i++) {
+            long[] yi = y[i];
+            long li = l[i];
+            for (int j = 0; j < n; j++) {
+                result[j] = field.add(result[j], field.multiply(li, yi[j]));
+            }
+        }
+        return result;
+    }
+}
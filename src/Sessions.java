@@ -0,0 +1,125 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Demultiplexes the shares that arrive at a peer to the {@code Inbox} of their
+ * session, so that many sessions can run in the same peer at once, each on its own
+ * thread (see {@code Peer.runSession()}). The inbox of a session is created by
+ * whichever comes first: the session starting, or its first share arriving.
+ * A closed session stays closed: its inbox is dropped, and so is every share of it
+ * that arrives later. Only the ids of closed sessions are kept for that, and only
+ * for {@code CLOSED_RETENTION_MILLIS}: by then, a share of the session can only come
+ * from a peer so far behind that the others' rounds have already timed out waiting
+ * for it, so its id is forgotten and memory stays bounded by the sessions closed
+ * within that time.
+ */
+public class Sessions {
+    /**
+     * Runs sessions: on a virtual thread per session when the JVM has them (Java 21
+     * and later), and on a cached pool of daemon threads otherwise.
+     */
+    static final ExecutorService EXECUTOR = newExecutor();
+
+    /**
+     * How long the id of a closed session is kept: as long as a round waits for its
+     * shares, plus as long as the transport keeps sending a share.
+     */
+    static final long CLOSED_RETENTION_MILLIS = Inbox.TIMEOUT_MILLIS +
+            ReliableTransport.GIVE_UP_MILLIS;
+
+    private final ConcurrentHashMap<Integer, Inbox> inboxes = new ConcurrentHashMap<>();
+    /**
+     * The closed sessions, and when they were closed (by {@code System.nanoTime()}).
+     */
+    private final ConcurrentHashMap<Integer, Long> closed = new ConcurrentHashMap<>();
+    /**
+     * The same, in the order they were closed, so the oldest are forgotten first.
+     */
+    private final ConcurrentLinkedQueue<Closed> closedOrder = new ConcurrentLinkedQueue<>();
+
+    private static class Closed {
+        final int session;
+        final long nanos;
+
+        Closed(int session, long nanos) {
+            this.session = session;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * Hands a share to the inbox of its session, unless that session is closed.
+     */
+    void add(Utils.ShareWrapper shareWrapper) {
+        int session = shareWrapper.session;
+        if (closed.containsKey(session)) {
+            return;
+        }
+        Inbox inbox = inbox(session);
+        inbox.add(shareWrapper);
+        // The session may have been closed in the meantime, after this created a new
+        // inbox for it.
+        if (closed.containsKey(session)) {
+            inboxes.remove(session, inbox);
+        }
+    }
+
+    /**
+     * @return the inbox of a session, created if needed.
+     */
+    Inbox inbox(int session) {
+        return inboxes.computeIfAbsent(session, s -> new Inbox());
+    }
+
+    /**
+     * Closes a session, see {@code Inbox.close()}. Called once a peer is done with a
+     * session, so that shares that never get taken (like the late shares of a peer
+     * that dies) don't pile up.
+     */
+    void close(int session) {
+        long now = System.nanoTime();
+        forgetClosedBefore(now - TimeUnit.MILLISECONDS.toNanos(CLOSED_RETENTION_MILLIS));
+        closed.put(session, now);
+        closedOrder.add(new Closed(session, now));
+        Inbox inbox = inboxes.remove(session);
+        if (inbox != null) {
+            inbox.close();
+        }
+    }
+
+    /**
+     * Forgets the ids of the sessions that were closed before {@code nanos}, unless
+     * they were closed again since.
+     */
+    private void forgetClosedBefore(long nanos) {
+        Closed oldest;
+        while ((oldest = closedOrder.peek()) != null && oldest.nanos - nanos < 0) {
+            if (closedOrder.remove(oldest)) {
+                closed.remove(oldest.session, oldest.nanos);
+            }
+        }
+    }
+
+    /**
+     * Looks up {@code Executors.newVirtualThreadPerTaskExecutor()} by reflection, so
+     * this still compiles and runs on JVMs without virtual threads.
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "session-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
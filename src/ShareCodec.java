@@ -0,0 +1,101 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Binary wire format for a {@code Utils.ShareWrapper}. A message is a fixed size
+ * header followed by the values of the shares:
+ * <pre>
+ * | version (1) | session (4) | round (4) | sender (4) | id (4) | x (4) | count (4) |
+ * | share 1 (8) | share 2 (8) | ... | share count (8) |
+ * </pre>
+ * The session, round and sender let a peer tell which step of which protocol a
+ * share belongs to, no matter in which order shares arrive. A message usually holds
+ * a single share; a message with a batch of shares lets a peer send all the values
+ * of a round to another peer at once.
+ * Fields are written in big endian order. Since a share is an element of
+ * {@code Utils.FIELD}, it always fits in 8 bytes, so a share is written and read
+ * without building any intermediate strings.
+ */
+public class ShareCodec {
+    public static final byte VERSION = 3;
+    public static final int HEADER_SIZE = 1 + 4 + 4 + 4 + 4 + 4 + 4;
+    /**
+     * The size of a message that holds a single share.
+     */
+    public static final int MESSAGE_SIZE = HEADER_SIZE + 8;
+
+    /**
+     * @return the number of bytes {@code encode()} writes for {@code shareWrapper}.
+     */
+    public static int size(Utils.ShareWrapper shareWrapper) {
+        return HEADER_SIZE + 8 * shareWrapper.count();
+    }
+
+    /**
+     * Writes {@code shareWrapper} at the current position of {@code buffer} and
+     * advances the position past it.
+     *
+     * @throws java.nio.BufferOverflowException if there are less than
+     *                                          {@code size(shareWrapper)} bytes
+     *                                          remaining.
+     */
+    public static void encode(Utils.ShareWrapper shareWrapper, ByteBuffer buffer) {
+        buffer.put(VERSION);
+        buffer.putInt(shareWrapper.session);
+        buffer.putInt(shareWrapper.round);
+        buffer.putInt(shareWrapper.sender);
+        buffer.putInt(shareWrapper.id);
+        buffer.putInt(shareWrapper.x);
+        if (shareWrapper.batch == null) {
+            buffer.putInt(1);
+            buffer.putLong(shareWrapper.share);
+        } else {
+            buffer.putInt(shareWrapper.batch.length);
+            for (long share : shareWrapper.batch) {
+                buffer.putLong(share);
+            }
+        }
+    }
+
+    /**
+     * Reads a share from the current position of {@code buffer} and advances the
+     * position past it. If the message holds more than one share, they are stored in
+     * {@code batch}, and {@code share} is the first of them.
+     *
+     * @throws IllegalArgumentException if the message was written by a different
+     *                                  version of the codec or is too short.
+     */
+    public static Utils.ShareWrapper decode(ByteBuffer buffer) {
+        if (buffer.remaining() < MESSAGE_SIZE) {
+            throw new IllegalArgumentException("Expected a message of at least " +
+                    MESSAGE_SIZE + " bytes, got " + buffer.remaining());
+        }
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported message version " + version);
+        }
+        int session = buffer.getInt();
+        int round = buffer.getInt();
+        int sender = buffer.getInt();
+        int id = buffer.getInt();
+        int x = buffer.getInt();
+        int count = buffer.getInt();
+        if (count < 1 || buffer.remaining() < 8L * count) {
+            throw new IllegalArgumentException("Message is too short for " + count +
+                    " shares");
+        }
+        Utils.ShareWrapper shareWrapper;
+        if (count == 1) {
+            shareWrapper = new Utils.ShareWrapper(buffer.getLong(), id, x);
+        } else {
+            long[] batch = new long[count];
+            for (int i = 0; i < count; i++) {
+                batch[i] = buffer.getLong();
+            }
+            shareWrapper = new Utils.ShareWrapper(batch, id, x);
+        }
+        shareWrapper.session = session;
+        shareWrapper.round = round;
+        shareWrapper.sender = sender;
+        return shareWrapper;
+    }
+}
@@ -0,0 +1,124 @@
+import java.io.IOException;
+
+/**
+ * A vector of secrets, shared among the peers: this peer's shares of all of them,
+ * in a single {@code long[]}. Every element is a Shamir share of degree
+ * {@code Utils.DEGREE}, like the shares that a {@code Multiplier} multiplies.
+ * Adding vectors and multiplying them by a public scalar is done locally, element by
+ * element, without any messages. Multiplying two vectors element by element, their
+ * dot product, and opening a vector each take a single round, in which this peer
+ * sends a single message per peer however long the vector is (or, for vectors that
+ * don't fit in a datagram, one per {@code Peer.MAX_SHARES_PER_MESSAGE} values, all
+ * sent at once). A vector is never copied into one object per element.
+ * <p>
+ * Operations that communicate run in the session of the {@code Peer} they are given,
+ * so every peer must call them in the same order. Vectors are immutable: every
+ * operation returns a new one.
+ */
+public class SharedVector {
+    final long[] shares;
+
+    /**
+     * @param shares this peer's shares, which are not copied.
+     */
+    SharedVector(long[] shares) {
+        this.shares = shares;
+    }
+
+    public int length() {
+        return shares.length;
+    }
+
+    /**
+     * @return shares of this[k] + other[k].
+     */
+    public SharedVector add(SharedVector other) {
+        checkLength(other);
+        Field field = Utils.FIELD;
+        long[] sum = new long[shares.length];
+        for (int k = 0; k < sum.length; k++) {
+            sum[k] = field.add(shares[k], other.shares[k]);
+        }
+        return new SharedVector(sum);
+    }
+
+    /**
+     * @return shares of this[k] - other[k].
+     */
+    public SharedVector subtract(SharedVector other) {
+        checkLength(other);
+        Field field = Utils.FIELD;
+        long[] difference = new long[shares.length];
+        for (int k = 0; k < difference.length; k++) {
+            difference[k] = field.subtract(shares[k], other.shares[k]);
+        }
+        return new SharedVector(difference);
+    }
+
+    /**
+     * @param scalar a public element of the field, the same at every peer.
+     * @return shares of scalar * this[k].
+     */
+    public SharedVector multiply(long scalar) {
+        Field field = Utils.FIELD;
+        long[] product = new long[shares.length];
+        for (int k = 0; k < product.length; k++) {
+            product[k] = field.multiply(scalar, shares[k]);
+        }
+        return new SharedVector(product);
+    }
+
+    /**
+     * @return this peer's share of the sum of all the elements.
+     */
+    public long sum() {
+        Field field = Utils.FIELD;
+        long sum = 0;
+        for (long share : shares) {
+            sum = field.add(sum, share);
+        }
+        return sum;
+    }
+
+    /**
+     * Multiplies the vectors element by element.
+     *
+     * @param multiplier does a multiplication per element, see {@code Multiplier}.
+     * @return shares of this[k] * other[k].
+     * @throws IOException thrown by {@code multiplier}
+     */
+    public SharedVector multiply(SharedVector other, Peer peer, Multiplier multiplier)
+            throws IOException {
+        checkLength(other);
+        return new SharedVector(multiplier.multiply(peer, shares, other.shares));
+    }
+
+    /**
+     * The dot product: the element-wise product, added up locally.
+     *
+     * @param multiplier does a multiplication per element, see {@code Multiplier}.
+     * @return this peer's share of the sum of this[k] * other[k].
+     * @throws IOException thrown by {@code multiplier}
+     */
+    public long dot(SharedVector other, Peer peer, Multiplier multiplier)
+            throws IOException {
+        return multiply(other, peer, multiplier).sum();
+    }
+
+    /**
+     * Opens all the elements.
+     *
+     * @return the secrets.
+     * @throws IOException thrown by {@code Peer.reconstructSecrets()}
+     */
+    public long[] open(Peer peer) throws IOException {
+        return peer.reconstructSecrets(shares);
+    }
+
+    private void checkLength(SharedVector other) {
+        if (other.shares.length != shares.length) {
+            throw new IllegalArgumentException("Vectors of different lengths: " +
+                    shares.length + " and " + other.shares.length);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Moves messages between the parties of the protocol. Parties are addressed by id:
+ * the Runner is {@code Utils.RUNNER_ID} and the peers are 1 to {@code Utils.NUM_PEERS}.
+ * Small messages (shares, signals) are sent as single datagrams with
+ * {@code send()}, and large payloads (like a million triples) are sent over a
+ * stream opened with {@code connect()}. Incoming messages are pushed to the
+ * {@code Handler} given to {@code listen()}.
+ */
+public interface Transport extends Closeable {
+    /**
+     * Receives the messages of a {@code Transport}.
+     */
+    interface Handler {
+        /**
+         * Called for every message that arrives. {@code message} holds the bytes of
+         * the message between its position and limit, and is only valid until this
+         * method returns; the transport reuses it for the next message.
+         */
+        void onMessage(ByteBuffer message);
+    }
+
+    /**
+     * Sends the bytes between the position and the limit of {@code message} to party
+     * {@code to}. The position of {@code message} is not changed.
+     *
+     * @throws IOException if the message could not be sent.
+     */
+    void send(int to, ByteBuffer message) throws IOException;
+
+    /**
+     * Sends {@code message} to every peer, including this one if it is a peer.
+     *
+     * @throws IOException see {@code send()}.
+     */
+    default void broadcast(ByteBuffer message) throws IOException {
+        for (int i = 1; i <= Utils.NUM_PEERS; i++) {
+            send(i, message);
+        }
+    }
+
+    /**
+     * Starts delivering incoming messages to {@code handler}. All messages are
+     * delivered one after the other from a single thread owned by the transport, so
+     * the handler should only do a small amount of work (like decoding the message
+     * and handing it over to the protocol) before returning.
+     *
+     * @throws IOException if the transport couldn't start receiving.
+     */
+    void listen(Handler handler) throws IOException;
+
+    /**
+     * Opens a stream to party {@code to}, which it can pick up with {@code accept()}.
+     * The caller must close the stream once everything has been written.
+     *
+     * @throws IOException if the stream could not be opened.
+     */
+    OutputStream connect(int to) throws IOException;
+
+    /**
+     * Blocks until another party opens a stream to this one with {@code connect()}.
+     * The caller must close the stream after use.
+     *
+     * @throws IOException if accepting the stream failed.
+     */
+    InputStream accept() throws IOException;
+}
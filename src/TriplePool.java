@@ -0,0 +1,129 @@
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out a peer's Beaver triples, such that every triple is used at most once,
+ * even by multiplications that run at the same time. A triple that is used twice
+ * leaks the difference of the two values it masked, so callers never pick indices
+ * themselves: a multiplication {@code claim()}s the triples it needs, and gets the
+ * index of the first of a range that nobody else got.
+ * <p>
+ * Unique isn't enough: the peers must also use the shares of the same triple for
+ * the same multiplication, so every peer has to claim the same range for it.
+ * Multiplications that run at the same time would claim in a different order at
+ * every peer, so a pool belongs to the first session that claims from it, and
+ * another session that claims from it gets an {@code IllegalStateException}. The
+ * multiplications of a session run one after the other, in the same order at
+ * every peer, so they claim the same ranges everywhere. Sessions that run at the
+ * same time get pools of their own from {@code reserve()}, which must be called in
+ * the same order at every peer, e.g. before the sessions are started.
+ * <p>
+ * Claiming is a single {@code getAndAdd()} on the cursor, without locks or retries,
+ * so it doesn't become a bottleneck however many threads multiply. A claim that
+ * doesn't fit anymore still moves the cursor, so once the pool runs out, the last
+ * few triples may be left unused. The cursor is a long, so failed claims can't wrap
+ * it around.
+ * <p>
+ * Once fewer than {@code lowWatermark} triples are left after a claim, the
+ * {@code onLow} listener is called, once per pool, on the thread that made the
+ * claim. That is the signal to get a new pool from the dealer before this one runs
+ * out.
+ */
+public class TriplePool {
+    private static final int NO_SESSION = -1;
+    final Utils.OneMillionBeaverTriples triples;
+    private final long end;
+    private final AtomicLong next;
+    private final AtomicInteger session = new AtomicInteger(NO_SESSION);
+    private final AtomicBoolean low = new AtomicBoolean();
+    private final int lowWatermark;
+    private final Runnable onLow;
+
+    /**
+     * A pool without a low watermark.
+     */
+    TriplePool(Utils.OneMillionBeaverTriples triples) {
+        this(triples, 0, () -> {
+        });
+    }
+
+    /**
+     * @param triples      the triples to hand out.
+     * @param lowWatermark {@code onLow} is called once fewer triples than this are
+     *                     left.
+     * @param onLow        the listener for the low watermark.
+     */
+    TriplePool(Utils.OneMillionBeaverTriples triples, int lowWatermark, Runnable onLow) {
+        this(triples, 0, triples.n, lowWatermark, onLow);
+    }
+
+    /**
+     * A pool of the triples [first, end) of {@code triples}.
+     */
+    private TriplePool(Utils.OneMillionBeaverTriples triples, long first, long end,
+                       int lowWatermark, Runnable onLow) {
+        this.triples = triples;
+        this.next = new AtomicLong(first);
+        this.end = end;
+        this.lowWatermark = lowWatermark;
+        this.onLow = onLow;
+    }
+
+    /**
+     * Moves the next {@code n} triples to a pool of their own, without a low
+     * watermark, for a session that runs at the same time as the sessions that use
+     * this pool.
+     *
+     * @throws IllegalStateException if fewer than {@code n} triples are left.
+     */
+    TriplePool reserve(int n) {
+        long first = take(n);
+        return new TriplePool(triples, first, first + n, 0, () -> {
+        });
+    }
+
+    /**
+     * Claims the next {@code n} triples for a multiplication of {@code session}.
+     *
+     * @return the index of the first of them in {@code triples}; the others follow.
+     * @throws IllegalStateException if fewer than {@code n} triples are left, or if
+     *                               the pool belongs to another session.
+     */
+    int claim(int session, int n) {
+        if (!this.session.compareAndSet(NO_SESSION, session) &&
+                this.session.get() != session) {
+            throw new IllegalStateException("Session " + session + " can't claim " +
+                    "triples of session " + this.session.get() + ", reserve() a pool " +
+                    "for it instead");
+        }
+        long first = take(n);
+        Metrics.TRIPLES_CLAIMED.add(n);
+        return (int) first;
+    }
+
+    /**
+     * Moves the cursor past the next {@code n} triples.
+     *
+     * @return the index of the first of them.
+     */
+    private long take(int n) {
+        long first = next.getAndAdd(n);
+        long left = end - first - n;
+        if (left < lowWatermark && low.compareAndSet(false, true)) {
+            onLow.run();
+        }
+        if (left < 0) {
+            throw new IllegalStateException("Out of triples: needed " + n + ", but only " +
+                    Math.max(0, end - first) + " were left");
+        }
+        return first;
+    }
+
+    /**
+     * @return the number of triples that were not claimed or reserved yet.
+     */
+    int remaining() {
+        return (int) Math.max(0, end - next.get());
+    }
+}
@@ -0,0 +1,237 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A peer's shares of Beaver triples, dealt ahead of time into a file, so the
+ * preprocessing (offline) phase doesn't have to run when the computation (online
+ * phase) does. {@code main()} deals the files of all the peers; a peer then maps its
+ * own file into memory and takes the triples straight from the mapping.
+ * <p>
+ * A file starts with a header of {@code HEADER_BYTES}:
+ * - the magic number {@code MAGIC} and the {@code VERSION} of the format, as ints.
+ * - the id of the peer, N and t, as ints, and an unused int.
+ * - the number of triples in the file, as a long.
+ * - the number of triples that were consumed already, as a long.
+ * followed by a, b and c of every triple, one triple after the other, as longs.
+ * <p>
+ * A triple must never be used twice, not even across restarts. So {@code take()}
+ * reserves the triples in the header and forces the header to disk before it hands
+ * them out: a crash can lose triples that were reserved but never used, but it can
+ * never hand them out again.
+ */
+public class TripleStore implements Closeable {
+    static final int MAGIC = 0x4D504354;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 40;
+    private static final int CONSUMED_OFFSET = 32;
+    private static final int TRIPLE_BYTES = 3 * Long.BYTES;
+    /**
+     * A file is mapped in one piece, so it can't be larger than a
+     * {@code MappedByteBuffer}.
+     */
+    static final long MAX_TRIPLES = (Integer.MAX_VALUE - HEADER_BYTES) / TRIPLE_BYTES;
+    private static final int CHUNK_TRIPLES = 4096;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer mapping;
+    private final LongBuffer triples;
+    private final long count;
+
+    private TripleStore(FileChannel channel, MappedByteBuffer mapping, long count) {
+        this.channel = channel;
+        this.mapping = mapping;
+        this.triples = mapping.slice(HEADER_BYTES, mapping.capacity() - HEADER_BYTES)
+                .asLongBuffer();
+        this.count = count;
+    }
+
+    /**
+     * Deals {@code n} triples into one file per peer in the given directory, see
+     * {@code deal()}. Run with {@code java TripleStore directory n}, configured like
+     * the peers (see {@code Utils.configure()}).
+     */
+    public static void main(String[] args) throws IOException {
+        Utils.configure();
+        if (args.length != 2) {
+            System.err.println("Usage: java TripleStore directory n");
+            System.exit(1);
+        }
+        Path directory = Paths.get(args[0]);
+        long n = Long.parseLong(args[1]);
+        deal(directory, n);
+        System.out.println("Dealt " + n + " triples to " + Utils.NUM_PEERS +
+                " peers in " + directory);
+    }
+
+    /**
+     * @return the file of the peer with the given id in {@code directory}.
+     */
+    static Path path(Path directory, int id) {
+        return directory.resolve("triples-" + id + ".bin");
+    }
+
+    /**
+     * Generates {@code n} triples with {@code ParallelDealer}, one chunk at a time,
+     * and writes the shares of peer i to {@code path(directory, i)}. Every file is
+     * written next to its final name first and moved into place once it is complete,
+     * so a peer never maps half a file. Existing files are replaced.
+     *
+     * @throws IllegalArgumentException if n is negative or larger than
+     *                                  {@code MAX_TRIPLES}.
+     */
+    static void deal(Path directory, long n) throws IOException {
+        if (n < 0 || n > MAX_TRIPLES) {
+            throw new IllegalArgumentException("Can't store " + n + " triples in a file, " +
+                    "at most " + MAX_TRIPLES);
+        }
+        int numPeers = Utils.NUM_PEERS;
+        Files.createDirectories(directory);
+        Path[] temporary = new Path[numPeers + 1];
+        FileChannel[] channels = new FileChannel[numPeers + 1];
+        try {
+            for (int i = 1; i <= numPeers; i++) {
+                temporary[i] = Files.createTempFile(directory, "triples-" + i + "-", ".tmp");
+                channels[i] = FileChannel.open(temporary[i], StandardOpenOption.WRITE);
+                writeFully(channels[i], header(i, n));
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_TRIPLES * TRIPLE_BYTES);
+            for (long from = 0; from < n; from += CHUNK_TRIPLES) {
+                int m = (int) Math.min(CHUNK_TRIPLES, n - from);
+                Utils.OneMillionBeaverTriples[] shares = ParallelDealer.deal(m);
+                for (int i = 1; i <= numPeers; i++) {
+                    buffer.clear();
+                    for (int j = 0; j < m; j++) {
+                        buffer.putLong(shares[i].a[j]).putLong(shares[i].b[j])
+                                .putLong(shares[i].c[j]);
+                    }
+                    buffer.flip();
+                    writeFully(channels[i], buffer);
+                }
+            }
+            for (int i = 1; i <= numPeers; i++) {
+                channels[i].force(true);
+                channels[i].close();
+                Files.move(temporary[i], path(directory, i),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                temporary[i] = null;
+            }
+        } finally {
+            for (int i = 1; i <= numPeers; i++) {
+                if (channels[i] != null) {
+                    channels[i].close();
+                }
+                if (temporary[i] != null) {
+                    Files.deleteIfExists(temporary[i]);
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer header(int id, long n) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putInt(id).putInt(Utils.NUM_PEERS)
+                .putInt(Utils.DEGREE).putInt(0).putLong(n).putLong(0);
+        return header.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Maps the file of peer {@code id} in {@code directory}.
+     *
+     * @throws IOException if the file can't be opened, or if it isn't a triple store
+     *                     for this peer with the configured N and t.
+     */
+    static TripleStore open(Path directory, int id) throws IOException {
+        Path path = path(directory, id);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException(path + " is not a triple store");
+            }
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (mapping.getInt(0) != MAGIC) {
+                throw new IOException(path + " is not a triple store");
+            }
+            if (mapping.getInt(4) != VERSION) {
+                throw new IOException(path + " has version " + mapping.getInt(4) +
+                        ", expected " + VERSION);
+            }
+            if (mapping.getInt(8) != id || mapping.getInt(12) != Utils.NUM_PEERS ||
+                    mapping.getInt(16) != Utils.DEGREE) {
+                throw new IOException(path + " is for peer " + mapping.getInt(8) +
+                        " with N=" + mapping.getInt(12) + " and t=" + mapping.getInt(16) +
+                        ", not for peer " + id + " with N=" + Utils.NUM_PEERS + " and t=" +
+                        Utils.DEGREE);
+            }
+            long count = mapping.getLong(24);
+            if (size != HEADER_BYTES + count * TRIPLE_BYTES) {
+                throw new IOException(path + " should hold " + count +
+                        " triples, but is " + size + " bytes long");
+            }
+            return new TripleStore(channel, mapping, count);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of triples that were not taken yet.
+     */
+    synchronized long remaining() {
+        return count - mapping.getLong(CONSUMED_OFFSET);
+    }
+
+    /**
+     * Reserves the next {@code n} triples on disk, then reads them from the mapping.
+     *
+     * @return the triples, as a {@code OneMillionBeaverTriples} of {@code n} triples.
+     * @throws EOFException if there are less than {@code n} triples left; nothing is
+     *                      reserved then.
+     */
+    synchronized Utils.OneMillionBeaverTriples take(int n) throws IOException {
+        long consumed = mapping.getLong(CONSUMED_OFFSET);
+        if (n > count - consumed) {
+            throw new EOFException("Need " + n + " triples, but only " +
+                    (count - consumed) + " are left");
+        }
+        mapping.putLong(CONSUMED_OFFSET, consumed + n);
+        mapping.force(CONSUMED_OFFSET, Long.BYTES);
+
+        long[] a = new long[n];
+        long[] b = new long[n];
+        long[] c = new long[n];
+        LongBuffer source = triples.duplicate().position((int) (3 * consumed));
+        for (int j = 0; j < n; j++) {
+            a[j] = source.get();
+            b[j] = source.get();
+            c[j] = source.get();
+        }
+        return new Utils.OneMillionBeaverTriples(a, b, c);
+    }
+
+    /**
+     * Closes the file. The mapping itself goes away once it is garbage collected.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,278 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Streams the shares of Beaver triples from the dealer to the peers in fixed-size
+ * binary chunks, over one stream per peer that stays open for as long as the peer
+ * keeps taking triples. A chunk is the number of triples m in it, followed by m
+ * a's, m b's and m c's as longs. A chunk with m=0 ends the stream.
+ * <p>
+ * Both ends only hold a few chunks at a time:
+ * - {@code Sender} generates a chunk for all the peers at once, and hands every
+ * peer's part to a writer thread for that peer through a queue of
+ * {@code QUEUE_CHUNKS} chunks. Once the queue of a peer is full, generation waits.
+ * - {@code Receiver} decodes chunks on a background thread into a queue of
+ * {@code QUEUE_CHUNKS} chunks, from which the peer takes triples as it needs them.
+ * Once that queue is full, the receiver stops reading, the stream's buffers fill up
+ * and the writer for that peer blocks.
+ * So a peer that doesn't take triples holds up the dealer instead of running out of
+ * memory, and generating, sending and using triples overlap.
+ */
+public class TripleStream {
+    static final int CHUNK_TRIPLES = 4096;
+    static final int QUEUE_CHUNKS = 4;
+    private static final long[] END = new long[0];
+
+    /**
+     * The dealer's end: streams the shares of {@code n} triples to every peer.
+     */
+    static class Sender implements Closeable {
+        private final ArrayList<BlockingQueue<long[]>> queues = new ArrayList<>();
+        private final ArrayList<Thread> threads = new ArrayList<>();
+        private final ArrayList<OutputStream> streams = new ArrayList<>();
+        private final Set<Integer> stopped = ConcurrentHashMap.newKeySet();
+        private volatile boolean closed;
+
+        /**
+         * Opens a stream to every peer and starts generating and sending triples in
+         * the background.
+         *
+         * @throws IOException if a stream can't be opened.
+         */
+        Sender(Transport transport, int n) throws IOException {
+            queues.add(null);
+            for (int i = 1; i <= Utils.NUM_PEERS; i++) {
+                int peer = i;
+                BlockingQueue<long[]> queue = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+                OutputStream stream = transport.connect(peer);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+                queues.add(queue);
+                streams.add(stream);
+                threads.add(start("triple-writer-" + peer, () -> write(peer, queue, out)));
+            }
+            threads.add(start("triple-generator", () -> generate(n)));
+        }
+
+        /**
+         * Generates the triples one chunk at a time, and queues every peer's part of
+         * a chunk for its writer. Peers that stopped taking triples are skipped.
+         */
+        private void generate(int n) {
+            try {
+                for (int from = 0; from < n && !closed; from += CHUNK_TRIPLES) {
+                    if (stopped.size() == Utils.NUM_PEERS) {
+                        return;
+                    }
+                    int m = Math.min(CHUNK_TRIPLES, n - from);
+                    Utils.OneMillionBeaverTriples[] shares = ParallelDealer.deal(m);
+                    for (int i = 1; i <= Utils.NUM_PEERS; i++) {
+                        if (stopped.contains(i)) {
+                            continue;
+                        }
+                        long[] chunk = new long[3 * m];
+                        System.arraycopy(shares[i].a, 0, chunk, 0, m);
+                        System.arraycopy(shares[i].b, 0, chunk, m, m);
+                        System.arraycopy(shares[i].c, 0, chunk, 2 * m, m);
+                        queues.get(i).put(chunk);
+                    }
+                }
+                for (int i = 1; i <= Utils.NUM_PEERS; i++) {
+                    if (!stopped.contains(i)) {
+                        queues.get(i).put(END);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Closed before all the triples were sent.
+            }
+        }
+
+        /**
+         * Writes the chunks queued for a peer until the last one. If the peer closes
+         * its end, the peer is marked as stopped and its queue is emptied, so the
+         * generator never waits for it again.
+         */
+        private void write(int peer, BlockingQueue<long[]> queue, DataOutputStream out) {
+            try (out) {
+                long[] chunk;
+                do {
+                    chunk = queue.take();
+                    out.writeInt(chunk.length / 3);
+                    for (long value : chunk) {
+                        out.writeLong(value);
+                    }
+                    out.flush();
+                } while (chunk != END);
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Peer " + peer + " stopped taking triples: " + e);
+                }
+            } catch (InterruptedException e) {
+                // Closed.
+            } finally {
+                stopped.add(peer);
+                queue.clear();
+            }
+        }
+
+        /**
+         * Stops generating triples and closes the streams to the peers, then waits
+         * for the background threads to finish. The streams are closed underneath
+         * their buffers, so a writer that is blocked on a peer fails right away
+         * instead of this waiting for the buffer to be flushed.
+         */
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            for (OutputStream stream : streams) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // The peer is gone already.
+                }
+            }
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    /**
+     * A peer's end: decodes the chunks of a stream in the background and hands out
+     * the triples in the order they were sent.
+     */
+    static class Receiver implements Closeable {
+        private final BlockingQueue<long[]> chunks = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+        private final DataInputStream in;
+        private final Thread reader;
+        private volatile IOException failure;
+        private long[] chunk;
+        private int position;
+
+        Receiver(InputStream stream) {
+            in = new DataInputStream(new BufferedInputStream(stream));
+            reader = start("triple-reader", this::read);
+        }
+
+        private void read() {
+            try {
+                int m;
+                do {
+                    m = in.readInt();
+                    if (m < 0 || m > CHUNK_TRIPLES) {
+                        throw new IOException("Expected a chunk of at most " +
+                                CHUNK_TRIPLES + " triples, got " + m);
+                    }
+                    long[] chunk = m == 0 ? END : new long[3 * m];
+                    for (int j = 0; j < chunk.length; j++) {
+                        chunk[j] = in.readLong();
+                    }
+                    chunks.put(chunk);
+                } while (m > 0);
+            } catch (IOException e) {
+                failure = e;
+                end();
+            } catch (InterruptedException e) {
+                // Closed.
+            }
+        }
+
+        /**
+         * Tells {@code take()} that no more chunks are coming, waiting for room in the
+         * queue if it is full, so the END is never lost.
+         */
+        private void end() {
+            try {
+                chunks.put(END);
+            } catch (InterruptedException e) {
+                // Closed.
+            }
+        }
+
+        /**
+         * Takes the next {@code count} triples, waiting for them to arrive if needed.
+         *
+         * @return the triples, as a {@code OneMillionBeaverTriples} of
+         * {@code count} triples.
+         * @throws EOFException if the stream ends before {@code count} triples
+         *                      arrived.
+         */
+        synchronized Utils.OneMillionBeaverTriples take(int count) throws IOException {
+            long[] a = new long[count];
+            long[] b = new long[count];
+            long[] c = new long[count];
+            int j = 0;
+            while (j < count) {
+                if (chunk == null || position == chunk.length / 3) {
+                    chunk = nextChunk();
+                    position = 0;
+                }
+                int m = chunk.length / 3;
+                int length = Math.min(count - j, m - position);
+                System.arraycopy(chunk, position, a, j, length);
+                System.arraycopy(chunk, m + position, b, j, length);
+                System.arraycopy(chunk, 2 * m + position, c, j, length);
+                position += length;
+                j += length;
+            }
+            return new Utils.OneMillionBeaverTriples(a, b, c);
+        }
+
+        private long[] nextChunk() throws IOException {
+            if (chunk == END) {
+                throw new EOFException("The dealer sent no more triples");
+            }
+            long[] next;
+            try {
+                next = chunks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (next == END) {
+                chunk = END;
+                if (failure != null) {
+                    throw failure;
+                }
+                throw new EOFException("The dealer sent no more triples");
+            }
+            return next;
+        }
+
+        /**
+         * Stops reading and closes the stream, which tells the dealer to stop sending.
+         */
+        @Override
+        public void close() throws IOException {
+            reader.interrupt();
+            in.close();
+        }
+    }
+
+    private static Thread start(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,224 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+
+/**
+ * A {@code Transport} for parties running in separate docker containers. Messages
+ * are sent as UDP datagrams over a single long lived non-blocking
+ * {@code DatagramChannel}, and streams are TCP connections. Party i is reached at
+ * the docker service name of peer i (or of the runner), which is resolved once and
+ * then cached.
+ * Incoming messages are read by an event loop thread that waits on a
+ * {@code Selector} and passes every message to the {@code Handler}. Messages are
+ * copied into pooled direct buffers, so sending and receiving don't allocate.
+ */
+public class UdpTransport implements Transport {
+    /**
+     * The largest payload that fits into a single UDP datagram.
+     */
+    public static final int MAX_MESSAGE_SIZE = 65507;
+    private static final int SOCKET_BUFFER_SIZE = 1 << 20;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private final ServerSocket serverSocket;
+    private final BufferPool bufferPool = new BufferPool(MAX_MESSAGE_SIZE);
+    private final ArrayDeque<PendingMessage> pendingMessages = new ArrayDeque<>();
+    private final InetAddress[] hosts = new InetAddress[Utils.NUM_PEERS + 1];
+    private final InetSocketAddress[] udpAddresses =
+            new InetSocketAddress[Utils.NUM_PEERS + 1];
+    private Thread eventLoop;
+    private volatile boolean closed;
+
+    /**
+     * A message that couldn't be sent right away because the socket's send buffer
+     * was full. The event loop sends it once the channel is writable again.
+     */
+    private static class PendingMessage {
+        final ByteBuffer buffer;
+        final InetSocketAddress address;
+
+        PendingMessage(ByteBuffer buffer, InetSocketAddress address) {
+            this.buffer = buffer;
+            this.address = address;
+        }
+    }
+
+    /**
+     * @param udpPort the port to receive messages on.
+     * @param tcpPort the port to accept streams on, or -1 if this party never accepts
+     *                streams. The port is bound right away, so other parties can
+     *                connect as soon as this party has started.
+     * @throws IOException if either port can't be bound.
+     */
+    public UdpTransport(int udpPort, int tcpPort) throws IOException {
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+        channel.bind(new InetSocketAddress(udpPort));
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        key = channel.register(selector, SelectionKey.OP_READ);
+        serverSocket = tcpPort == -1 ? null : new ServerSocket(tcpPort);
+    }
+
+    /**
+     * Sends the message right away if the socket has room for it. Otherwise the
+     * message is queued, and the event loop sends it when the socket is writable.
+     */
+    @Override
+    public void send(int to, ByteBuffer message) throws IOException {
+        ByteBuffer buffer = bufferPool.acquire();
+        buffer.put(message.duplicate());
+        buffer.flip();
+        InetSocketAddress address = getUdpAddress(to);
+        synchronized (pendingMessages) {
+            if (flushPendingMessages() && channel.send(buffer, address) > 0) {
+                bufferPool.release(buffer);
+                return;
+            }
+            pendingMessages.add(new PendingMessage(buffer, address));
+        }
+        selector.wakeup();
+    }
+
+    @Override
+    public synchronized void listen(Handler handler) {
+        if (eventLoop != null) {
+            throw new IllegalStateException("Already listening");
+        }
+        eventLoop = new Thread(() -> runEventLoop(handler), "udp-event-loop");
+        eventLoop.setDaemon(true);
+        eventLoop.start();
+    }
+
+    /**
+     * Waits for the channel to become readable (or writable, if there are pending
+     * messages), then reads every datagram that is available into the same buffer
+     * and passes it to {@code handler}.
+     */
+    private void runEventLoop(Handler handler) {
+        ByteBuffer receiveBuffer = bufferPool.acquire();
+        try {
+            while (!closed) {
+                boolean hasPendingMessages;
+                synchronized (pendingMessages) {
+                    hasPendingMessages = !pendingMessages.isEmpty();
+                }
+                key.interestOps(hasPendingMessages ?
+                        SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                selector.select();
+                if (!selector.selectedKeys().remove(key)) {
+                    continue;
+                }
+                if (key.isReadable()) {
+                    receiveBuffer.clear();
+                    while (channel.receive(receiveBuffer) != null) {
+                        receiveBuffer.flip();
+                        dispatch(handler, receiveBuffer);
+                        receiveBuffer.clear();
+                    }
+                }
+                if (key.isValid() && key.isWritable()) {
+                    synchronized (pendingMessages) {
+                        flushPendingMessages();
+                    }
+                }
+            }
+        } catch (ClosedChannelException | ClosedSelectorException e) {
+            // The transport was closed.
+        } catch (IOException e) {
+            if (!closed) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void dispatch(Handler handler, ByteBuffer message) {
+        try {
+            handler.onMessage(message);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends queued messages in order until the socket is full. Must be called while
+     * holding the lock on {@code pendingMessages}.
+     *
+     * @return true if all pending messages have been sent.
+     */
+    private boolean flushPendingMessages() throws IOException {
+        PendingMessage pendingMessage;
+        while ((pendingMessage = pendingMessages.peek()) != null) {
+            if (channel.send(pendingMessage.buffer, pendingMessage.address) == 0) {
+                return false;
+            }
+            pendingMessages.poll();
+            bufferPool.release(pendingMessage.buffer);
+        }
+        return true;
+    }
+
+    @Override
+    public OutputStream connect(int to) throws IOException {
+        Socket clientSocket = new Socket();
+        clientSocket.connect(new InetSocketAddress(getHost(to), Peer.TCP_PORT));
+        return clientSocket.getOutputStream();
+    }
+
+    @Override
+    public InputStream accept() throws IOException {
+        if (serverSocket == null) {
+            throw new SocketException("This transport doesn't accept streams");
+        }
+        return serverSocket.accept().getInputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        channel.close();
+        selector.close();
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * @return the host of party {@code id}. Host names are only looked up the first
+     * time a party is contacted.
+     */
+    private InetAddress getHost(int id) throws UnknownHostException {
+        InetAddress host = hosts[id];
+        if (host == null) {
+            String hostName = id == Utils.RUNNER_ID ? Utils.SERVICE_NAME_RUNNER :
+                    Utils.SERVICE_NAME_PEER + "_" + id; // multi-party-computation_peer_1
+            host = InetAddress.getByName(hostName);
+            hosts[id] = host;
+        }
+        return host;
+    }
+
+    /**
+     * @return the address party {@code id} receives messages on.
+     */
+    private InetSocketAddress getUdpAddress(int id) throws UnknownHostException {
+        InetSocketAddress address = udpAddresses[id];
+        if (address == null) {
+            address = new InetSocketAddress(getHost(id),
+                    id == Utils.RUNNER_ID ? Runner.PORT : Peer.PORT);
+            udpAddresses[id] = address;
+        }
+        return address;
+    }
+}
@@ -1,6 +1,10 @@
-public class UnsupportedPolynomialException extends Exception {
-    public UnsupportedPolynomialException() {
-        super();
-        System.err.println("Currently, only polynomials of degree 2 are supported");
+/**
+ * Thrown when a polynomial can't be solved, ie. when there are less than t+1
+ * equations for a polynomial of degree t.
+ */
+public class UnsupportedPolynomialException extends IllegalArgumentException {
+    public UnsupportedPolynomialException(int degree, int numPoints) {
+        super("A polynomial of degree " + degree + " needs at least " + (degree + 1) +
+                " points to be solved, but only " + numPoints + " were given");
     }
 }
@@ -1,20 +1,85 @@
 import java.io.IOException;
-import java.math.BigInteger;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
  * Common utilities and functions that are shared for the Runner and a Peer.
  */
 public class Utils {
-    public static final int NUM_PEERS = 5;
+    /**
+     * The number of peers N and the degree t of the polynomials. They are set once at
+     * startup by {@code configure()}, before any party is created, and never change
+     * afterwards.
+     */
+    public static int NUM_PEERS = 5;
+    public static int DEGREE = 2;
+    public static Reconstruction RECONSTRUCTION = Reconstruction.BROADCAST;
+    public static Dealer DEALER = Dealer.FULL;
+    public static String TRIPLE_STORE = "triples";
+    public static int METRICS_PORT = -1;
+    public static final int RUNNER_ID = 0;
+    public static final int SESSION_RECONSTRUCTION = 1;
+    public static final int SESSION_SUMMATION = 2;
+    public static final int SESSION_BEAVER_NAIVE = 3;
+    public static final int SESSION_BEAVER_FAST = 4;
+    public static final int SESSION_BGW = 5;
+    public static final Field FIELD = new MersenneField();
     public static final String DELIMITER = ";";
     public static final String SERVICE_NAME = "multi-party-computation";
     public static final String SERVICE_NAME_RUNNER = SERVICE_NAME + "_runner_1";
     public static final String SERVICE_NAME_PEER = SERVICE_NAME + "_peer";
 
+    /**
+     * How peers open a shared value, see {@code Peer.reconstructSecret()}.
+     * - BROADCAST: every peer sends its share to every peer, and every peer
+     * reconstructs the secret. One round, but N^2 messages.
+     * - KING: every peer sends its share to one peer, the king, who reconstructs the
+     * secret and sends it back to everyone. Two rounds, but only 2N messages. The
+     * king changes from round to round, so the work is spread over all the peers.
+     */
+    public enum Reconstruction {BROADCAST, KING}
+
+    /**
+     * How the Runner deals the triples of {@code demonstrateBeaverTriplesNaive()}.
+     * - FULL: every peer gets all its shares of every triple.
+     * - SEEDED: peers expand most of their shares from a seed, see
+     * {@code SeededDealer}.
+     * - STORE: nothing is dealt; peers take the triples from the files that
+     * {@code TripleStore} dealt ahead of time into the directory {@code TRIPLE_STORE}.
+     */
+    public enum Dealer {FULL, SEEDED, STORE}
+
+    /**
+     * Sets {@code NUM_PEERS}, {@code DEGREE}, {@code RECONSTRUCTION}, {@code DEALER},
+     * {@code TRIPLE_STORE} and {@code METRICS_PORT} (see {@code Metrics}; -1 turns
+     * the HTTP endpoint off) from the system properties or environment variables of the same
+     * name (a system property wins over an environment variable). Every party of a run has to be configured
+     * with the same values. Values that are not set keep their defaults.
+     *
+     * @throws IllegalArgumentException if the values don't make a valid t-over-N
+     *                                  scheme, ie. unless 1 <= t < N.
+     */
+    public static void configure() {
+        int numPeers = Integer.parseInt(setting("NUM_PEERS", String.valueOf(NUM_PEERS)));
+        int degree = Integer.parseInt(setting("DEGREE", String.valueOf(DEGREE)));
+        if (degree < 1 || degree >= numPeers) {
+            throw new IllegalArgumentException("Need 1 <= DEGREE < NUM_PEERS, got " +
+                    "DEGREE=" + degree + " and NUM_PEERS=" + numPeers);
+        }
+        NUM_PEERS = numPeers;
+        DEGREE = degree;
+        RECONSTRUCTION = Reconstruction.valueOf(setting("RECONSTRUCTION",
+                RECONSTRUCTION.name()).toUpperCase());
+        DEALER = Dealer.valueOf(setting("DEALER", DEALER.name()).toUpperCase());
+        TRIPLE_STORE = setting("TRIPLE_STORE", TRIPLE_STORE);
+        METRICS_PORT = Integer.parseInt(setting("METRICS_PORT", String.valueOf(METRICS_PORT)));
+    }
+
+    private static String setting(String name, String defaultValue) {
+        String value = System.getProperty(name, System.getenv(name));
+        return value == null ? defaultValue : value.trim();
+    }
+
     /**
      * Wrapper for holding a share value, an id, and an x.
      * {@code id} represents the id of the peer that is receiving a share. In most
@@ -22,23 +87,44 @@ public class Utils {
      * of f(x)=a[n]x^n+a[n-1]x^n-1...f(0). However, sometimes, x can be different. As
      * such, for solving a Polynomial, {@code x} should be supplied to the
      * calculateSecret function, and not {@code id}.
+     * {@code session} and {@code round} tell which step of which protocol the share
+     * belongs to, and {@code sender} is the id of the peer (or {@code RUNNER_ID}) that
+     * sent it. They are filled in when the share is sent.
+     * A ShareWrapper can also hold a {@code batch} of shares that are all for the
+     * same x, which lets a peer send many shares in a single message.
      */
     public static class ShareWrapper {
-        BigInteger share;
+        long share;
+        long[] batch;
         int id;
         int x;
+        int session;
+        int round;
+        int sender;
 
-        public ShareWrapper(BigInteger share, int id, int x) {
+        public ShareWrapper(long share, int id, int x) {
             this.share = share;
             this.id = id;
             this.x = x;
         }
 
-        public ShareWrapper(String message) {
-            String[] splitMessage = message.split(DELIMITER);
-            this.share = new BigInteger(splitMessage[0]);
-            this.id = Integer.parseInt(splitMessage[1]);
-            this.x = Integer.parseInt(splitMessage[2]);
+        public ShareWrapper(long[] batch, int id, int x) {
+            this(batch.length > 0 ? batch[0] : 0, id, x);
+            this.batch = batch;
+        }
+
+        /**
+         * @return the number of shares held by this wrapper.
+         */
+        int count() {
+            return batch == null ? 1 : batch.length;
+        }
+
+        /**
+         * @return all the shares held by this wrapper, as an array.
+         */
+        long[] values() {
+            return batch == null ? new long[]{share} : batch;
         }
 
         @Override
@@ -51,61 +137,39 @@ public class Utils {
      * In the naive implementation of beaver triples multiplication, the dealer creates
      * 1 million triples and sends the shares of those triples to peers.
      * This class makes it really easy for the Dealer to do that. Creating a new
-     * instance automatically generates {@code n} randomized triples. It also has a
-     * toString() and a constructor to create an instance out of a String, making
-     * sending and receiving these triples trivial.
-     * Right now, the value of n is 2^17, because sending 1 million shares might freeze
-     * up some machines. If one million shares have to be sent, {@code n} below is the
-     * ONLY variable that needs to be changed (to 2^20).
+     * instance automatically generates {@code n} randomized triples. The shares are
+     * sent to the peers in chunks by {@code TripleStream}.
+     * Right now, the value of n is 2^17. If one million shares have to be sent,
+     * {@code SIZE} below is the ONLY variable that needs to be changed (to 2^20).
      */
     public static class OneMillionBeaverTriples {
-        int nBits = 20;
-        Random r = new Random();
-        int n = (int) Math.pow(2, 17);
-        private static final String DELIMITER = ";"; //Separates a,b,c.
-        private static final String SEPARATOR = "/"; //Separates 2 triples (a;b;c/a;b;c/)
+        static final int SIZE = (int) Math.pow(2, 17);
+        int n;
 
-        BigInteger[] a = new BigInteger[n];
-        BigInteger[] b = new BigInteger[n];
-        BigInteger[] c = new BigInteger[n];
+        long[] a;
+        long[] b;
+        long[] c;
 
+        /**
+         * Generates the triples in parallel, see {@code ParallelDealer}.
+         */
         OneMillionBeaverTriples() {
-            for (int i = 0; i < n; i++) {
-                a[i] = new BigInteger(nBits, r);
-                b[i] = new BigInteger(nBits, r);
-                c[i] = a[i].multiply(b[i]);
-            }
+            this(new long[SIZE], new long[SIZE], new long[SIZE]);
+            ParallelDealer.forEachChunk(n, (from, to, random) -> {
+                for (int i = from; i < to; i++) {
+                    a[i] = FIELD.random(random);
+                    b[i] = FIELD.random(random);
+                    c[i] = FIELD.multiply(a[i], b[i]);
+                }
+            });
         }
 
-        public OneMillionBeaverTriples(BigInteger[] a, BigInteger[] b, BigInteger[] c) {
+        public OneMillionBeaverTriples(long[] a, long[] b, long[] c) {
+            this.n = a.length;
             this.a = a;
             this.b = b;
             this.c = c;
         }
-
-        OneMillionBeaverTriples(String oneMillionTriples) {
-            String[] triples = oneMillionTriples.split(SEPARATOR);
-            for (int i = 0; i < triples.length; i++) {
-                String triple = triples[i];
-                String[] splitTriples = triple.split(DELIMITER);
-                a[i] = new BigInteger(splitTriples[0]);
-                b[i] = new BigInteger(splitTriples[1]);
-                c[i] = new BigInteger(splitTriples[2]);
-            }
-        }
-
-        @Override
-        public String toString() {
-            StringBuilder result = new StringBuilder();
-            for (int i = 0; i < n; i++) {
-                String triple = a[i] + DELIMITER + b[i] + DELIMITER + c[i];
-                if (i != n - 1) {
-                    triple += SEPARATOR;
-                }
-                result.append(triple);
-            }
-            return result.toString();
-        }
     }
 
     /**
@@ -116,13 +180,16 @@ public class Utils {
      * @return an array such that f[i] = f(x), and f is the current polynomial, and x
      * to i mapping is stored in idToXMap.
      */
-    public static BigInteger[] getF(Polynomial polynomial,
-                                    HashMap<Integer, Integer> idToXMap) {
-        BigInteger[] result = new BigInteger[NUM_PEERS + 1];
+    public static long[] getF(Polynomial polynomial,
+                              HashMap<Integer, Integer> idToXMap) {
+        int[] x = new int[NUM_PEERS];
         for (int i = 1; i <= NUM_PEERS; i++) {
-            int x = idToXMap.get(i);
-            result[i] = polynomial.f(x);
+            x[i - 1] = idToXMap.get(i);
         }
+        long[] values = new long[NUM_PEERS];
+        polynomial.f(x, values);
+        long[] result = new long[NUM_PEERS + 1];
+        System.arraycopy(values, 0, result, 1, NUM_PEERS);
         return result;
     }
 
@@ -171,23 +238,67 @@ public class Utils {
      * @param f           An array such that f[i] = f(x). See {@code getSecretFromUser()}
      * @param idToXMap    A mapping of i->x
      * @param numPeers    The number of parties in the protocol.
-     * @param serviceName The host name of the service. Used for InetAddress.getByName().
-     * @param port        The receiving party listens for comms on this port.
+     * @param transport   Used to send the shares.
+     * @param session     The session the shares belong to.
+     * @param round       The round of the session the shares belong to.
+     * @param sender      The id of the party sending the shares.
      */
-    public static void distributeShares(BigInteger[] f, HashMap<Integer, Integer> idToXMap,
-                                        int numPeers, String serviceName,
-                                        int port) throws IOException {
-        DatagramSocket socket = new DatagramSocket();
-        DatagramPacket packet;
+    public static void distributeShares(long[] f, HashMap<Integer, Integer> idToXMap,
+                                        int numPeers, Transport transport,
+                                        int session, int round,
+                                        int sender) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(ShareCodec.MESSAGE_SIZE);
         //peer i gets share f[x]
         for (int i = 1; i <= numPeers; i++) {
-            String peerName = serviceName + "_" + i;// multi-party-computation_peer_1
             int x = idToXMap.get(i);
             Utils.ShareWrapper shareWrapper = new Utils.ShareWrapper(f[i], i, x);
-            byte[] buffer = shareWrapper.toString().getBytes();
-            packet = new DatagramPacket(buffer, buffer.length,
-                    InetAddress.getByName(peerName), port);
-            socket.send(packet);
+            shareWrapper.session = session;
+            shareWrapper.round = round;
+            shareWrapper.sender = sender;
+            buffer.clear();
+            ShareCodec.encode(shareWrapper, buffer);
+            buffer.flip();
+            Metrics.sent(i, buffer.remaining());
+            transport.send(i, buffer);
+        }
+    }
+
+    /**
+     * Same as {@code distributeShares()}, except that every peer gets a batch of
+     * shares in a single message: peer i gets all the shares in f[i], which are all
+     * evaluated at the x of peer i. See {@code Polynomial.f(Polynomial[], int[],
+     * long[][])} for creating such an array.
+     *
+     * @param f         An array such that f[i][k] = f_k(x), where x is the x of
+     *                  peer i.
+     * @param idToXMap  A mapping of i->x
+     * @param numPeers  The number of parties in the protocol.
+     * @param transport Used to send the shares.
+     * @param session   The session the shares belong to.
+     * @param round     The round of the session the shares belong to.
+     * @param sender    The id of the party sending the shares.
+     */
+    public static void distributeShareBatches(long[][] f,
+                                              HashMap<Integer, Integer> idToXMap,
+                                              int numPeers, Transport transport,
+                                              int session, int round,
+                                              int sender) throws IOException {
+        ByteBuffer buffer = null;
+        for (int i = 1; i <= numPeers; i++) {
+            int x = idToXMap.get(i);
+            Utils.ShareWrapper shareWrapper = new Utils.ShareWrapper(f[i], i, x);
+            shareWrapper.session = session;
+            shareWrapper.round = round;
+            shareWrapper.sender = sender;
+            int size = ShareCodec.size(shareWrapper);
+            if (buffer == null || buffer.capacity() < size) {
+                buffer = ByteBuffer.allocate(size);
+            }
+            buffer.clear();
+            ShareCodec.encode(shareWrapper, buffer);
+            buffer.flip();
+            Metrics.sent(i, buffer.remaining());
+            transport.send(i, buffer);
         }
     }
 }